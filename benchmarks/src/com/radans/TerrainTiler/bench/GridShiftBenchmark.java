@@ -0,0 +1,89 @@
+/*
+ *
+ */
+package com.radans.TerrainTiler.bench;
+
+import com.radans.TerrainTiler.TerrainSnapshot;
+import com.radans.TerrainTiler.TerrainTiler;
+import com.radans.TerrainTiler.TileObserver;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time for the grid to follow an observer stepping one tile, from the step
+ * until the new column of tiles is loaded and the old one gone. Runs a
+ * headless tiler on synthetic tiles, so this covers the tiler thread, the
+ * loaders reading the pack and the update integrating the tiles, without
+ * any rendering. The observer steps back and forth between two tiles.
+ *
+ * @author Radan Vowles
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GridShiftBenchmark {
+
+    private static final int TILE_SIZE = 256;
+
+    @Param({"3", "5", "7", "9"})
+    public int gridSize;
+
+    private File map;
+    private TerrainTiler tiler;
+    private TileObserver observer;
+    private int tileX = 8;
+
+    @Setup
+    public void setup() throws Exception {
+        map = SyntheticMap.bake(TILE_SIZE, "pack");
+        tiler = new TerrainTiler(map.getPath());
+        tiler.setGridSize(gridSize);
+        observer = tiler.addObserver((tileX + 0.5f) * TILE_SIZE, 8.5f * TILE_SIZE);
+        tiler.setEnabled(true);
+        SyntheticMap.settle(tiler, gridSize * gridSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        tiler.close();
+        SyntheticMap.delete(map);
+    }
+
+    @Benchmark
+    public int shift() throws InterruptedException {
+        int step = tileX == 8 ? 1 : -1;
+        tileX += step;
+        observer.setLocation((tileX + 0.5f) * TILE_SIZE, 8.5f * TILE_SIZE);
+        int half = gridSize / 2;
+        int enter = tileX + step * half;        // column coming into the grid
+        int leave = tileX - step * (half + 1);  // column going out of it
+        long end = System.nanoTime() + 10000000000L;
+        while (true) {
+            tiler.update(0.016f);
+            TerrainSnapshot snap = tiler.getSnapshot();
+            if (snap.hasTile(enter, 8 - half) && snap.hasTile(enter, 8 + half)
+                    && !snap.hasTile(leave, 8) && snap.getTileCount() == gridSize * gridSize) {
+                return snap.getTileCount();
+            }
+            if (System.nanoTime() > end) {
+                throw new IllegalStateException("Grid did not shift");
+            }
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ *
+ */
+package com.radans.TerrainTiler.bench;
+
+import com.jme3.math.Vector2f;
+import com.jme3.math.Vector3f;
+import com.radans.TerrainTiler.TerrainTiler;
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Height and normal queries against a headless tiler holding a 5 by 5 grid,
+ * one point at a time and in batches. Points are spread at random over the
+ * loaded tiles so each call has to find its tile.
+ *
+ * @author Radan Vowles
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HeightQueryBenchmark {
+
+    private static final int BATCH = 1024;      // points a batch, a power of 2
+    private static final int TILE_SIZE = 256;
+
+    private File map;
+    private TerrainTiler tiler;
+    private final Vector2f[] points = new Vector2f[BATCH];
+    private final float[] xs = new float[BATCH];
+    private final float[] zs = new float[BATCH];
+    private final float[] heights = new float[BATCH];
+    private final float[] normals = new float[BATCH * 3];
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        map = SyntheticMap.bake(TILE_SIZE, "pack");
+        tiler = new TerrainTiler(map.getPath());
+        tiler.setGridSize(5);
+        tiler.addObserver(8.5f * TILE_SIZE, 8.5f * TILE_SIZE);
+        tiler.setEnabled(true);
+        SyntheticMap.settle(tiler, 25);
+        Random random = new Random(42);
+        for (int i = 0; i < BATCH; i++) {
+            xs[i] = (6 + random.nextFloat() * 5) * TILE_SIZE;   // anywhere in the grid
+            zs[i] = (6 + random.nextFloat() * 5) * TILE_SIZE;
+            points[i] = new Vector2f(xs[i], zs[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        tiler.close();
+        SyntheticMap.delete(map);
+    }
+
+    @Benchmark
+    public float getHeight() {
+        return tiler.getHeight(points[next++ & (BATCH - 1)]);
+    }
+
+    @Benchmark
+    public Vector3f getNormal() {
+        return tiler.getNormal(points[next++ & (BATCH - 1)]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void getHeights(Blackhole bh) {
+        tiler.getHeights(xs, zs, heights, BATCH);
+        bh.consume(heights);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void getNormals(Blackhole bh) {
+        tiler.getNormals(xs, zs, normals, BATCH);
+        bh.consume(normals);
+    }
+}
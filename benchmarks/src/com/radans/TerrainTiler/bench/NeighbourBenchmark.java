@@ -0,0 +1,118 @@
+/*
+ *
+ */
+package com.radans.TerrainTiler.bench;
+
+import com.jme3.app.SimpleApplication;
+import com.jme3.app.state.AppState;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+import com.jme3.terrain.geomipmap.TerrainQuad;
+import com.radans.TerrainTiler.TerrainTiler;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Neighbour lookups the LOD control makes through the NeighbourFinder, on a
+ * 5 by 5 grid of attached tiles. The application is never started, its
+ * state manager is updated by hand to attach the tiles.
+ *
+ * @author Radan Vowles
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NeighbourBenchmark {
+
+    private static final int TILE_SIZE = 256;
+
+    private File map;
+    private SimpleApplication app;
+    private TerrainTiler tiler;
+    private TerrainQuad[] quads;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        map = SyntheticMap.bake(TILE_SIZE, "pack");
+        app = new SimpleApplication(new AppState[0]) {
+            @Override
+            public void simpleInitApp() {
+            }
+        };
+        Camera cam = new Camera(640, 480);
+        cam.setLocation(new Vector3f(8.5f * TILE_SIZE, 100, 8.5f * TILE_SIZE));
+        tiler = new TerrainTiler(cam, map.getPath(), app);
+        tiler.setGridSize(5);
+        new Node("root").attachChild(tiler);
+        tiler.setEnabled(true);
+        long end = System.nanoTime() + 60000000000L;
+        while (tiler.getQuantity() < 25) {
+            if (System.nanoTime() > end) {
+                throw new IllegalStateException("Tiles did not attach, have " + tiler.getQuantity());
+            }
+            app.getStateManager().update(0.016f);
+            Thread.sleep(1);
+        }
+        List<TerrainQuad> found = new ArrayList<>();
+        for (Spatial s : tiler.getChildren()) {
+            if (s instanceof TerrainQuad) {
+                found.add((TerrainQuad) s);
+            }
+        }
+        quads = found.toArray(new TerrainQuad[found.size()]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        tiler.close();
+        SyntheticMap.delete(map);
+    }
+
+    private TerrainQuad nextQuad() {
+        TerrainQuad q = quads[next];
+        next = next + 1 < quads.length ? next + 1 : 0;
+        return q;
+    }
+
+    @Benchmark
+    public TerrainQuad getRightQuad() {
+        return tiler.getRightQuad(nextQuad());
+    }
+
+    @Benchmark
+    public TerrainQuad getTopQuad() {
+        return tiler.getTopQuad(nextQuad());
+    }
+
+    /**
+     * All four sides of one quad in turn, as the LOD asks for them
+     */
+    @Benchmark
+    public void allFour(Blackhole bh) {
+        TerrainQuad q = nextQuad();
+        bh.consume(tiler.getRightQuad(q));
+        bh.consume(tiler.getLeftQuad(q));
+        bh.consume(tiler.getDownQuad(q));
+        bh.consume(tiler.getTopQuad(q));
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ *
+ */
+package com.radans.TerrainTiler.bench;
+
+import com.radans.TerrainTiler.TerrainTiler;
+import com.radans.TerrainTiler.TileBaker;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Synthetic maps for the benchmarks, the TileBaker WaveSource baked into a
+ * map in a temporary directory.
+ *
+ * @author Radan Vowles
+ */
+final class SyntheticMap {
+
+    private SyntheticMap() {
+    }
+
+    /**
+     * Bake a map of 16 by 16 tiles
+     *
+     * @param tileSize - int tile size
+     * @param format - String TileBaker output format
+     * @return File of the map file, in a new temporary directory
+     * @throws IOException if the map can not be written
+     */
+    static File bake(int tileSize, String format) throws IOException {
+        File dir = Files.createTempDirectory("ttbench").toFile();
+        TileBaker baker = new TileBaker(new TileBaker.WaveSource(16 * tileSize + 1), dir, tileSize, 1, format,
+                Runtime.getRuntime().availableProcessors());
+        return baker.bake();
+    }
+
+    /**
+     * Delete a baked map and its directory
+     *
+     * @param mapFile - File of the map file
+     */
+    static void delete(File mapFile) {
+        File dir = mapFile.getParentFile();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * Run a headless tiler until it holds a number of tiles
+     *
+     * @param tiler - TerrainTiler to update
+     * @param tiles - int tiles to wait for
+     */
+    static void settle(TerrainTiler tiler, int tiles) throws InterruptedException {
+        long end = System.nanoTime() + 60000000000L;
+        while (tiler.getSnapshot().getTileCount() < tiles) {
+            if (System.nanoTime() > end) {
+                throw new IllegalStateException("Tiles did not load, have "
+                        + tiler.getSnapshot().getTileCount() + " of " + tiles);
+            }
+            tiler.update(0.016f);
+            Thread.sleep(1);
+        }
+    }
+}
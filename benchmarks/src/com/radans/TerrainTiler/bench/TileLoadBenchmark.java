@@ -0,0 +1,70 @@
+/*
+ *
+ */
+package com.radans.TerrainTiler.bench;
+
+import com.jme3.export.binary.BinaryExporter;
+import com.jme3.export.binary.BinaryImporter;
+import com.jme3.terrain.geomipmap.TerrainQuad;
+import com.radans.TerrainTiler.TileBaker;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of turning one tile into a TerrainQuad, as the loader threads do.
+ * loadJ3o reads a j3o tile held in memory, so the numbers are the
+ * deserialization alone without the disk. buildFromHeights builds the quad
+ * from heights as raw and pack tiles are.
+ *
+ * @author Radan Vowles
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TileLoadBenchmark {
+
+    @Param({"256", "512", "1024", "2048"})
+    public int tileSize;
+
+    private float[] heights;
+    private byte[] j3o;
+
+    @Setup
+    public void setup() throws IOException {
+        heights = new float[(tileSize + 1) * (tileSize + 1)];
+        for (int z = 0; z <= tileSize; z++) {
+            for (int x = 0; x <= tileSize; x++) {
+                heights[x + z * (tileSize + 1)] = TileBaker.WaveSource.height(x, z);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryExporter.getInstance().save(buildFromHeights(), out);
+        j3o = out.toByteArray();
+    }
+
+    @Benchmark
+    public TerrainQuad loadJ3o() throws IOException {
+        return (TerrainQuad) BinaryImporter.getInstance().load(j3o);
+    }
+
+    @Benchmark
+    public TerrainQuad buildFromHeights() {
+        // same patch size as the tiler uses for tiles built from heights
+        return new TerrainQuad("TILE", tileSize / 4 + 1, tileSize + 1, heights);
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ *
+ */
+package com.radans.TerrainTiler;
+
+import com.jme3.material.Material;
+import com.jme3.math.FastMath;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.util.BufferUtils;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Coarse terrain drawn beyond the tile grid, so the horizon does not end at
+ * the last loaded tile. The map is split into blocks of BLOCK by BLOCK tiles
+ * and each block near enough the camera is one Geometry built from the
+ * TileOverview, with fewer samples the further the block is from the camera.
+ * Cells under tiles attached to the scene are left out so the full detail
+ * tiles show through, and each block has a skirt hanging below its edges to
+ * hide the cracks between blocks of different detail.
+ *
+ * Blocks are rebuilt nearest first within the frame budget whenever their
+ * detail or the tiles attached inside them change. Only used from the render
+ * thread.
+ */
+class FarField extends Node {
+
+    static final int BLOCK = 8;                 // tiles a side in a block, 64 fit a long mask
+
+    private final TileOverview overview;
+    private final int samples;                  // overview samples a tile
+    private final int maxLevel;                 // coarsest level, one cell a tile
+    private final float cellSize;               // world size of an overview cell
+    private final int tileWSize;
+    private final int blocksX;
+    private final int blocksZ;
+    private final Geometry[] blocks;
+    private final int[] builtLevel;             // -1 if not built
+    private final long[] builtMask;             // attached tiles left out when built
+    private final long[] wantMask;              // attached tiles as of the last snapshot
+    private Material material;
+    private float distance;
+    private long maskVersion = -1;              // snapshot the masks were taken from
+    private boolean dirty;                      // blocks left to rebuild
+    private int centerX = Integer.MIN_VALUE;    // block the camera was in
+    private int centerZ = Integer.MIN_VALUE;
+
+    /**
+     * Create a far field
+     *
+     * @param ov - TileOverview to build from
+     * @param tSize - int tile size
+     * @param tScale - int tile scale
+     * @param mat - Material for the far field
+     */
+    FarField(TileOverview ov, int tSize, int tScale, Material mat) {
+        super("FarField");
+        this.overview = ov;
+        this.samples = ov.getSamplesPerTile();
+        this.maxLevel = Integer.numberOfTrailingZeros(samples);
+        this.cellSize = (float) tSize * tScale / samples;
+        this.tileWSize = tSize * tScale;
+        this.blocksX = (ov.getNumTilesX() + BLOCK - 1) / BLOCK;
+        this.blocksZ = (ov.getNumTilesZ() + BLOCK - 1) / BLOCK;
+        this.blocks = new Geometry[blocksX * blocksZ];
+        this.builtLevel = new int[blocks.length];
+        this.builtMask = new long[blocks.length];
+        this.wantMask = new long[blocks.length];
+        this.material = mat;
+        for (int i = 0; i < blocks.length; i++) {
+            builtLevel[i] = -1;
+        }
+    }
+
+    /**
+     * Sets how far out from the camera to draw, in world units
+     */
+    void setDistance(float dist) {
+        this.distance = dist;
+        centerX = Integer.MIN_VALUE;    // check every block again
+    }
+
+    float getDistance() {
+        return distance;
+    }
+
+    /**
+     * Sets the material of every block
+     */
+    void setFarMaterial(Material mat) {
+        this.material = mat;
+        setMaterial(mat);
+    }
+
+    /**
+     * Bring the far field up to date with the camera and attached tiles
+     *
+     * @param camX - float camera World X coordinate
+     * @param camZ - float camera World Z coordinate
+     * @param snap - TerrainSnapshot of the attached tiles
+     * @param deadline - long System.nanoTime to stop rebuilding blocks at,
+     * at least one block is rebuilt if any need it
+     */
+    void update(float camX, float camZ, TerrainSnapshot snap, long deadline) {
+        int cx = (int) FastMath.floor(camX / (tileWSize * BLOCK));
+        int cz = (int) FastMath.floor(camZ / (tileWSize * BLOCK));
+        int radius = (int) FastMath.ceil(distance / (tileWSize * BLOCK));
+        boolean moved = cx != centerX | cz != centerZ;
+        if (!moved & snap.getVersion() == maskVersion & !dirty) {
+            return;
+        }
+        if (moved | snap.getVersion() != maskVersion) {
+            maskVersion = snap.getVersion();
+            for (int bz = Math.max(cz - radius, 0); bz <= Math.min(cz + radius, blocksZ - 1); bz++) {
+                for (int bx = Math.max(cx - radius, 0); bx <= Math.min(cx + radius, blocksX - 1); bx++) {
+                    wantMask[bx + bz * blocksX] = attachedMask(bx, bz, snap);
+                }
+            }
+        }
+        if (moved) {
+            // drop blocks now out of range
+            for (int bz = 0; bz < blocksZ; bz++) {
+                for (int bx = 0; bx < blocksX; bx++) {
+                    int b = bx + bz * blocksX;
+                    if (blocks[b] != null && Math.max(Math.abs(bx - cx), Math.abs(bz - cz)) > radius) {
+                        detachChild(blocks[b]);
+                        blocks[b] = null;
+                        builtLevel[b] = -1;
+                    }
+                }
+            }
+            centerX = cx;
+            centerZ = cz;
+        }
+        // rebuild nearest first, ring by ring out from the camera
+        dirty = false;
+        boolean once = true;
+        for (int r = 0; r <= radius; r++) {
+            for (int bz = cz - r; bz <= cz + r; bz++) {
+                for (int bx = cx - r; bx <= cx + r; bx++) {
+                    if (Math.max(Math.abs(bx - cx), Math.abs(bz - cz)) != r
+                            | bx < 0 | bz < 0 | bx >= blocksX | bz >= blocksZ) {
+                        continue;
+                    }
+                    int b = bx + bz * blocksX;
+                    int level = Math.min(Math.max(r - 1, 0), maxLevel);
+                    if (builtLevel[b] == level & builtMask[b] == wantMask[b]) {
+                        continue;
+                    }
+                    if (!once & System.nanoTime() > deadline) {
+                        dirty = true;   // carry on next frame
+                        return;
+                    }
+                    buildBlock(bx, bz, level, wantMask[b]);
+                    once = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Bit per tile of a block, set if the tile is attached or off the map
+     */
+    private long attachedMask(int bx, int bz, TerrainSnapshot snap) {
+        long mask = 0;
+        for (int z = 0; z < BLOCK; z++) {
+            for (int x = 0; x < BLOCK; x++) {
+                int tx = bx * BLOCK + x;
+                int tz = bz * BLOCK + z;
+                if (tx >= overview.getNumTilesX() | tz >= overview.getNumTilesZ() || snap.hasTile(tx, tz)) {
+                    mask |= 1L << (x + z * BLOCK);
+                }
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Build the mesh of one block
+     *
+     * @param bx - block X
+     * @param bz - block Z
+     * @param level - int detail, each level halves the samples
+     * @param holes - long mask of tiles to leave out
+     */
+    private void buildBlock(int bx, int bz, int level, long holes) {
+        int b = bx + bz * blocksX;
+        builtLevel[b] = level;
+        builtMask[b] = holes;
+        if (holes == -1L) {
+            if (blocks[b] != null) {
+                detachChild(blocks[b]);     // every tile attached, nothing to draw
+                blocks[b] = null;
+            }
+            return;
+        }
+        int step = 1 << level;
+        int cells = BLOCK * samples / step;
+        int verts = cells + 1;
+        int x0 = bx * BLOCK * samples;
+        int z0 = bz * BLOCK * samples;
+        float spacing = cellSize * step;
+        float skirt = spacing;                  // deep enough to cover one coarse cell
+        FloatBuffer pos = BufferUtils.createFloatBuffer((verts * verts + verts * 4) * 3);
+        FloatBuffer nrm = BufferUtils.createFloatBuffer((verts * verts + verts * 4) * 3);
+        FloatBuffer tex = BufferUtils.createFloatBuffer((verts * verts + verts * 4) * 2);
+        for (int z = 0; z < verts; z++) {
+            for (int x = 0; x < verts; x++) {
+                vertex(x0 + x * step, z0 + z * step, step, 0, pos, nrm, tex);
+            }
+        }
+        // skirt vertices along the north, south, west and east edges
+        for (int i = 0; i < verts; i++) {
+            vertex(x0 + i * step, z0, step, skirt, pos, nrm, tex);
+        }
+        for (int i = 0; i < verts; i++) {
+            vertex(x0 + i * step, z0 + cells * step, step, skirt, pos, nrm, tex);
+        }
+        for (int i = 0; i < verts; i++) {
+            vertex(x0, z0 + i * step, step, skirt, pos, nrm, tex);
+        }
+        for (int i = 0; i < verts; i++) {
+            vertex(x0 + cells * step, z0 + i * step, step, skirt, pos, nrm, tex);
+        }
+        int perTile = samples / step;           // cells a tile
+        ShortBuffer idx = BufferUtils.createShortBuffer(cells * cells * 6 + cells * 4 * 6);
+        for (int z = 0; z < cells; z++) {
+            for (int x = 0; x < cells; x++) {
+                if (hole(holes, x, z, perTile)) {
+                    continue;
+                }
+                int i = x + z * verts;
+                quad(idx, i, i + 1, i + verts, i + verts + 1);
+            }
+        }
+        int skirtBase = verts * verts;
+        for (int i = 0; i < cells; i++) {
+            // only skirt edges whose cell is drawn
+            if (!hole(holes, i, 0, perTile)) {
+                quad(idx, skirtBase + i, skirtBase + i + 1, i, i + 1);
+            }
+            if (!hole(holes, i, cells - 1, perTile)) {
+                int top = cells * verts + i;
+                quad(idx, top, top + 1, skirtBase + verts + i, skirtBase + verts + i + 1);
+            }
+            if (!hole(holes, 0, i, perTile)) {
+                quad(idx, skirtBase + verts * 2 + i, i * verts, skirtBase + verts * 2 + i + 1, (i + 1) * verts);
+            }
+            if (!hole(holes, cells - 1, i, perTile)) {
+                quad(idx, i * verts + cells, skirtBase + verts * 3 + i, (i + 1) * verts + cells,
+                        skirtBase + verts * 3 + i + 1);
+            }
+        }
+        idx.flip();
+        Mesh mesh = new Mesh();
+        mesh.setBuffer(VertexBuffer.Type.Position, 3, pos);
+        mesh.setBuffer(VertexBuffer.Type.Normal, 3, nrm);
+        mesh.setBuffer(VertexBuffer.Type.TexCoord, 2, tex);
+        mesh.setBuffer(VertexBuffer.Type.Index, 3, idx);
+        mesh.updateBound();
+        if (blocks[b] == null) {
+            blocks[b] = new Geometry(String.format("FAR-%02d%02d", bx, bz), mesh);
+            blocks[b].setMaterial(material);
+            attachChild(blocks[b]);
+        } else {
+            blocks[b].setMesh(mesh);
+        }
+    }
+
+    private static boolean hole(long holes, int x, int z, int perTile) {
+        return (holes & (1L << (x / perTile + (z / perTile) * BLOCK))) != 0;
+    }
+
+    /**
+     * Two triangles a-c-b and b-c-d, with a to b along X and a to c along Z
+     */
+    private static void quad(ShortBuffer idx, int a, int b, int c, int d) {
+        idx.put((short) a).put((short) c).put((short) b);
+        idx.put((short) b).put((short) c).put((short) d);
+    }
+
+    /**
+     * Add one vertex at an overview sample
+     */
+    private void vertex(int sx, int sz, int step, float drop, FloatBuffer pos, FloatBuffer nrm, FloatBuffer tex) {
+        float h = overview.getHeight(sx, sz);
+        pos.put(sx * cellSize).put(h - drop).put(sz * cellSize);
+        float dx = (overview.getHeight(sx + step, sz) - overview.getHeight(sx - step, sz)) / (2 * step * cellSize);
+        float dz = (overview.getHeight(sx, sz + step) - overview.getHeight(sx, sz - step)) / (2 * step * cellSize);
+        float len = FastMath.sqrt(dx * dx + 1f + dz * dz);
+        nrm.put(-dx / len).put(1f / len).put(-dz / len);
+        tex.put(sx / (float) samples).put(sz / (float) samples);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ *
+ */
+package com.radans.TerrainTiler;
+
+/**
+ * The shape of the window of tiles kept loaded around an observer, in tiles
+ * around the tile the observer is in. A window is a square, a circle or an
+ * ellipse, which may be stretched along the heading and pushed forward of
+ * the observer so a fast mover such as an aircraft holds more tiles ahead
+ * than behind. The tile the observer is in is always part of the window.
+ *
+ * Headings are rounded to one of SECTORS directions so a window only changes
+ * shape when the heading swings by more than a sector. The window is held as
+ * a run of tiles on each row, so the tiler counts only the tiles entering
+ * and leaving it as an observer moves or turns, however large it is.
+ *
+ * Windows are immutable and can be shared by any number of observers.
+ *
+ * @author Radan Vowles
+ */
+public final class GridWindow {
+
+    /**
+     * Number of headings a directional window can take
+     */
+    public static final int SECTORS = 16;
+
+    /**
+     * Largest radius of a window, in tiles
+     */
+    public static final int MAX_RADIUS = 127;
+
+    private final float along;          // radius along the heading
+    private final float across;         // radius across the heading
+    private final float forward;        // tiles the center is pushed ahead
+    private final boolean round;
+    private final int radius;           // rows and columns either side of the center
+    private final int[][] spans = new int[SECTORS][];  // x0, x1 of each row, built on first use
+
+    private GridWindow(float radiusAlong, float radiusAcross, float ahead, boolean isRound) {
+        this.along = radiusAlong;
+        this.across = radiusAcross;
+        this.forward = ahead;
+        this.round = isRound;
+        this.radius = Math.min(MAX_RADIUS, (int) Math.ceil(Math.max(radiusAlong + Math.abs(ahead), radiusAcross)));
+    }
+
+    /**
+     * A square window, the same as a grid of size radius * 2 + 1
+     *
+     * @param radius - int tiles either side of the center, 0 to MAX_RADIUS
+     * @return GridWindow
+     */
+    public static GridWindow square(int radius) {
+        return new GridWindow(clamp(radius), clamp(radius), 0, false);
+    }
+
+    /**
+     * A circular window, tiles whose centers are within the radius of the
+     * center of the observers tile
+     *
+     * @param radius - float radius in tiles, up to MAX_RADIUS
+     * @return GridWindow
+     */
+    public static GridWindow circle(float radius) {
+        return new GridWindow(clamp(radius), clamp(radius), 0, true);
+    }
+
+    /**
+     * An elliptical window lined up with the heading of the observer
+     *
+     * @param radiusAlong - float radius in tiles along the heading
+     * @param radiusAcross - float radius in tiles across the heading
+     * @param ahead - float tiles to push the center of the ellipse ahead of
+     * the observer, negative to push it behind
+     * @return GridWindow
+     */
+    public static GridWindow ellipse(float radiusAlong, float radiusAcross, float ahead) {
+        return new GridWindow(clamp(radiusAlong), clamp(radiusAcross), ahead, true);
+    }
+
+    private static float clamp(float r) {
+        return Math.max(0, Math.min(r, MAX_RADIUS));
+    }
+
+    /**
+     * Rows and columns the window reaches either side of the center tile
+     *
+     * @return int radius in tiles
+     */
+    public int getRadius() {
+        return radius;
+    }
+
+    /**
+     * Check if the shape of the window depends on the heading
+     *
+     * @return true if stretched or pushed along the heading
+     */
+    public boolean isDirectional() {
+        return round & (along != across | forward != 0);
+    }
+
+    /**
+     * Check if a tile is in the window
+     *
+     * @param dx - int tiles from the center in X
+     * @param dz - int tiles from the center in Z
+     * @param sector - int heading, 0 to SECTORS - 1
+     * @return true if the tile is in the window
+     */
+    public boolean contains(int dx, int dz, int sector) {
+        if (dz < -radius | dz > radius) {
+            return false;
+        }
+        int[] s = spans(sector);
+        int row = (dz + radius) * 2;
+        return dx >= s[row] & dx <= s[row + 1];
+    }
+
+    /**
+     * First and last tile of each row of the window, rows from -radius to
+     * radius. A row with no tiles has first > last.
+     *
+     * @param sector - int heading, ignored unless directional
+     * @return int array of first, last pairs, shared so must not be changed
+     */
+    int[] spans(int sector) {
+        int sec = isDirectional() ? sector & (SECTORS - 1) : 0;
+        int[] s = spans[sec];
+        if (s == null) {
+            s = buildSpans(sec);
+            spans[sec] = s;     // racing builds make the same array
+        }
+        return s;
+    }
+
+    private int[] buildSpans(int sector) {
+        double angle = sector * 2 * Math.PI / SECTORS;
+        float cos = (float) Math.cos(angle);
+        float sin = (float) Math.sin(angle);
+        int[] s = new int[(radius * 2 + 1) * 2];
+        for (int dz = -radius; dz <= radius; dz++) {
+            int first = 1;
+            int last = 0;
+            for (int dx = -radius; dx <= radius; dx++) {
+                if (inside(dx, dz, cos, sin)) {
+                    if (first > last) {
+                        first = dx;
+                    }
+                    last = dx;
+                }
+            }
+            if (dz == 0) {
+                first = Math.min(first > last ? 0 : first, 0);   // always hold the observers tile
+                last = Math.max(last, 0);
+            }
+            s[(dz + radius) * 2] = first;
+            s[(dz + radius) * 2 + 1] = last;
+        }
+        return s;
+    }
+
+    private boolean inside(int dx, int dz, float cos, float sin) {
+        if (!round) {
+            return Math.abs(dx) <= along & Math.abs(dz) <= along;
+        }
+        float a = dx * cos + dz * sin - forward;
+        float c = dz * cos - dx * sin;
+        float ra = along + 0.5f;        // reach the tile centers on the rim
+        float rc = across + 0.5f;
+        return (a * a) / (ra * ra) + (c * c) / (rc * rc) <= 1f;
+    }
+
+    /**
+     * Heading sector of a direction
+     *
+     * @param dirX - float X of the direction
+     * @param dirZ - float Z of the direction
+     * @return int sector, 0 to SECTORS - 1
+     */
+    static int sector(float dirX, float dirZ) {
+        double turns = Math.atan2(dirZ, dirX) / (2 * Math.PI);
+        return (int) Math.round(turns * SECTORS) & (SECTORS - 1);
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ *
+ */
+package com.radans.TerrainTiler;
+
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.terrain.geomipmap.TerrainPatch;
+import com.radans.TerrainTiler.TileRegistry.Tile;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * One batch of height edits over the tiles in use. Each point goes only to
+ * the tiles holding its height sample, both tiles for a sample on a shared
+ * edge and all four at a corner, so a tile never looks at another tiles
+ * points and the tiles are edited in parallel.
+ *
+ * Edits are made in steps, each spread over the tiles. First every tile
+ * edited gets a new copy of its heights, copying only the rows changed.
+ * Then the patches of each tile are brought into line with the copy, only
+ * over the samples edited and the ring around them: the patch heightmap,
+ * the vertex heights and the normals, tangents and binormals. Normals at tile edges take the heights across the
+ * edge from the neighbouring tile, so both sides of a seam get the same
+ * normal, and a tile next to an edit has its edge normals redone even if
+ * none of its heights change. Last the bounds of the patches touched are
+ * refreshed on the calling thread.
+ *
+ * Normals are worked out as TerrainPatch does along patch edges, averaging
+ * the four triangles around each sample. Tiles are assumed to be scaled the
+ * same in every direction, as the tiler scales them.
+ */
+final class HeightEditor {
+
+    private final int tileSize;
+    private final int numTilesX;
+    private final int numTilesZ;
+    private final int keyStride;
+    private final float sampleSize;         // world units between samples
+    private final Map<Integer, TileEdit> edits = new LinkedHashMap<>();   // by tile key
+
+    /**
+     * The edits to one tile
+     */
+    static final class TileEdit {
+
+        final int tx;
+        final int tz;
+        Tile tile;
+        TileHeights heights;                // edited copy, the tiles own if only normals change
+        int[] at = new int[16];             // sample indexes, x + z * (tileSize + 1)
+        float[] values = new float[16];
+        int count;                          // samples edited
+        int x0 = Integer.MAX_VALUE;         // samples whose normals change, inclusive
+        int z0 = Integer.MAX_VALUE;
+        int x1 = Integer.MIN_VALUE;
+        int z1 = Integer.MIN_VALUE;
+        private final TileHeights[] around = new TileHeights[9];  // 3 by 3 tiles, this one in the middle
+        private final List<TerrainPatch> touched = new ArrayList<>();
+
+        TileEdit(int tileX, int tileZ) {
+            this.tx = tileX;
+            this.tz = tileZ;
+        }
+    }
+
+    /**
+     * Start a batch
+     *
+     * @param tSize - int tile size
+     * @param tScale - int tile scale
+     * @param nTilesX - int tiles in X
+     * @param nTilesZ - int tiles in Z
+     * @param stride - int multiplier of z in tile keys
+     */
+    HeightEditor(int tSize, int tScale, int nTilesX, int nTilesZ, int stride) {
+        this.tileSize = tSize;
+        this.numTilesX = nTilesX;
+        this.numTilesZ = nTilesZ;
+        this.keyStride = stride;
+        this.sampleSize = tScale;
+    }
+
+    /**
+     * Add one point to the tiles holding it or a sample next to it. Points
+     * off the map are ignored.
+     *
+     * @param x - float World X coordinate
+     * @param z - float World Z coordinate
+     * @param value - float height, or change in height
+     */
+    void add(float x, float z, float value) {
+        int gx = Math.round(x / sampleSize);
+        int gz = Math.round(z / sampleSize);
+        if (gx < 0 | gz < 0 | gx > numTilesX * tileSize | gz > numTilesZ * tileSize) {
+            return;
+        }
+        int tz1 = Math.min((gz + 1) / tileSize, numTilesZ - 1);
+        int tx1 = Math.min((gx + 1) / tileSize, numTilesX - 1);
+        for (int tz = Math.max((gz - 2) / tileSize, 0); tz <= tz1; tz++) {
+            for (int tx = Math.max((gx - 2) / tileSize, 0); tx <= tx1; tx++) {
+                int lx = gx - tx * tileSize;
+                int lz = gz - tz * tileSize;
+                int key = tx + tz * keyStride;
+                TileEdit e = edits.get(key);
+                if (e == null) {
+                    e = new TileEdit(tx, tz);
+                    edits.put(key, e);
+                }
+                e.x0 = Math.min(e.x0, Math.max(lx - 1, 0));
+                e.z0 = Math.min(e.z0, Math.max(lz - 1, 0));
+                e.x1 = Math.max(e.x1, Math.min(lx + 1, tileSize));
+                e.z1 = Math.max(e.z1, Math.min(lz + 1, tileSize));
+                if (lx >= 0 & lz >= 0 & lx <= tileSize & lz <= tileSize) {
+                    if (e.count == e.at.length) {
+                        e.at = Arrays.copyOf(e.at, e.count * 2);
+                        e.values = Arrays.copyOf(e.values, e.count * 2);
+                    }
+                    e.at[e.count] = lx + lz * (tileSize + 1);
+                    e.values[e.count++] = value;
+                }
+            }
+        }
+    }
+
+    /**
+     * Make the edits to the tiles in the scene, or in use by a headless tiler.
+     * The tiles are left holding their old heights, the caller swaps in the
+     * new copies of the tiles with a count above 0 and publishes them.
+     *
+     * @param registry - TileRegistry of the tiles
+     * @param set - true to set heights, false to add to them
+     * @param entropies - true to work out the LOD entropies of the patches
+     * touched again
+     * @param pool - ExecutorService to spread the tiles over, null to do them
+     * all on this thread
+     * @return List of TileEdit of the tiles changed
+     */
+    List<TileEdit> apply(TileRegistry registry, final boolean set, final boolean entropies, ExecutorService pool) {
+        for (Iterator<TileEdit> it = edits.values().iterator(); it.hasNext();) {
+            TileEdit e = it.next();
+            Tile t = registry.get(e.tx + e.tz * keyStride);
+            if (t == null || !t.getState().inScene() || t.heights == null) {
+                it.remove();        // not in use, nothing to edit
+                continue;
+            }
+            e.tile = t;
+            e.heights = t.heights;
+        }
+        // new heights
+        List<Callable<Void>> work = new ArrayList<>();
+        for (final TileEdit e : edits.values()) {
+            if (e.count > 0) {
+                work.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        e.heights = e.heights.edit(e.at, e.values, e.count, set);
+                        return null;
+                    }
+                });
+            }
+        }
+        run(work, pool);
+        // patches, once every tile has its new heights for the seams
+        work.clear();
+        for (final TileEdit e : edits.values()) {
+            if (e.tile.quad == null) {
+                continue;           // headless, heights only
+            }
+            for (int dz = -1; dz <= 1; dz++) {
+                for (int dx = -1; dx <= 1; dx++) {
+                    e.around[dx + 1 + (dz + 1) * 3] = heightsOf(registry, e.tx + dx, e.tz + dz);
+                }
+            }
+            work.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    updatePatches(e, entropies);
+                    return null;
+                }
+            });
+        }
+        run(work, pool);
+        for (TileEdit e : edits.values()) {
+            for (TerrainPatch patch : e.touched) {
+                patch.updateModelBound();   // walks up the scene graph, so not in parallel
+            }
+        }
+        return new ArrayList<>(edits.values());
+    }
+
+    /**
+     * Current heights of a tile, the edited copy if it is in this batch
+     */
+    private TileHeights heightsOf(TileRegistry registry, int tx, int tz) {
+        if (tx < 0 | tz < 0 | tx >= numTilesX | tz >= numTilesZ) {
+            return null;
+        }
+        TileEdit e = edits.get(tx + tz * keyStride);
+        if (e != null) {
+            return e.heights;
+        }
+        Tile t = registry.get(tx + tz * keyStride);
+        return t != null && t.getState().inScene() ? t.heights : null;
+    }
+
+    /**
+     * Bring the patches of a tile into line with its new heights, over the
+     * samples whose normals change
+     */
+    private void updatePatches(TileEdit e, boolean entropies) {
+        List<TerrainPatch> patches = new ArrayList<>();
+        e.tile.quad.getAllTerrainPatches(patches);
+        Vector3f center = e.tile.quad.getWorldTranslation();
+        float[] n = new float[9];           // normal, tangent, binormal
+        for (TerrainPatch patch : patches) {
+            int size = patch.getSize();
+            Vector3f loc = patch.getWorldTranslation();
+            float scale = patch.getWorldScale().x;
+            int ox = Math.round((loc.x - center.x) / scale) + tileSize / 2;  // first sample of the patch
+            int oz = Math.round((loc.z - center.z) / scale) + tileSize / 2;
+            int x0 = Math.max(e.x0, ox);
+            int z0 = Math.max(e.z0, oz);
+            int x1 = Math.min(e.x1, ox + size - 1);
+            int z1 = Math.min(e.z1, oz + size - 1);
+            if (x0 > x1 | z0 > z1) {
+                continue;
+            }
+            float[] hMap = patch.getHeightMap();
+            float stepY = patch.getStepScale().y;
+            Mesh mesh = patch.getMesh();
+            VertexBuffer pos = mesh.getBuffer(VertexBuffer.Type.Position);
+            VertexBuffer nrm = mesh.getBuffer(VertexBuffer.Type.Normal);
+            VertexBuffer tan = mesh.getBuffer(VertexBuffer.Type.Tangent);
+            VertexBuffer bin = mesh.getBuffer(VertexBuffer.Type.Binormal);
+            for (int z = z0; z <= z1; z++) {
+                for (int x = x0; x <= x1; x++) {
+                    int i = (x - ox) + (z - oz) * size;
+                    float h = e.heights.getSample(x, z);
+                    hMap[i] = h;
+                    ((FloatBuffer) pos.getData()).put(i * 3 + 1, h * stepY);
+                    normal(e, x, z, n);
+                    put(nrm, i, n, 0);
+                    put(tan, i, n, 3);
+                    put(bin, i, n, 6);
+                }
+            }
+            pos.setUpdateNeeded();
+            if (nrm != null) {
+                nrm.setUpdateNeeded();
+            }
+            if (tan != null) {
+                tan.setUpdateNeeded();
+            }
+            if (bin != null) {
+                bin.setUpdateNeeded();
+            }
+            if (entropies) {
+                patch.generateLodEntropies();
+            }
+            e.touched.add(patch);
+        }
+    }
+
+    private static void put(VertexBuffer vb, int index, float[] n, int offset) {
+        if (vb != null) {
+            FloatBuffer fb = (FloatBuffer) vb.getData();
+            fb.put(index * 3, n[offset]).put(index * 3 + 1, n[offset + 1]).put(index * 3 + 2, n[offset + 2]);
+        }
+    }
+
+    /**
+     * Normal, tangent and binormal at a sample, averaging the four triangles
+     * around it as TerrainPatch.averageNormalsTangents does. Triangles off
+     * the edge of the map or into tiles not in use are left out.
+     */
+    private void normal(TileEdit e, int x, int z, float[] out) {
+        float h0 = sample(e, x, z);
+        float top = sample(e, x, z - 1) - h0;
+        float left = sample(e, x - 1, z) - h0;
+        float bottom = sample(e, x, z + 1) - h0;
+        float right = sample(e, x + 1, z) - h0;
+        out[0] = 0;
+        out[1] = 0;
+        out[2] = 0;
+        if (!Float.isNaN(top) & !Float.isNaN(left)) {
+            addUnit(out, left, 1f, top);
+        }
+        if (!Float.isNaN(left) & !Float.isNaN(bottom)) {
+            addUnit(out, left, 1f, -bottom);
+        }
+        if (!Float.isNaN(bottom) & !Float.isNaN(right)) {
+            addUnit(out, -right, 1f, -bottom);
+        }
+        if (!Float.isNaN(right) & !Float.isNaN(top)) {
+            addUnit(out, -right, 1f, top);
+        }
+        float len = (float) Math.sqrt(out[0] * out[0] + out[1] * out[1] + out[2] * out[2]);
+        if (len == 0) {
+            out[1] = 1f;        // a lone sample, face up
+            len = 1f;
+        }
+        float nx = out[0] / len;
+        float ny = out[1] / len;
+        float nz = out[2] / len;
+        out[0] = nx;
+        out[1] = ny;
+        out[2] = nz;
+        // tangent is normal x (0,0,1), binormal (1,0,0) x normal
+        float tl = (float) Math.sqrt(ny * ny + nx * nx);
+        out[3] = ny / tl;
+        out[4] = -nx / tl;
+        out[5] = 0;
+        float bl = (float) Math.sqrt(nz * nz + ny * ny);
+        out[6] = 0;
+        out[7] = -nz / bl;
+        out[8] = ny / bl;
+    }
+
+    private static void addUnit(float[] out, float x, float y, float z) {
+        float len = (float) Math.sqrt(x * x + y * y + z * z);
+        out[0] += x / len;
+        out[1] += y / len;
+        out[2] += z / len;
+    }
+
+    /**
+     * Height of a sample in tile local samples, reaching one sample into the
+     * neighbouring tiles
+     *
+     * @return float height, NaN if the tile there is not in use
+     */
+    private float sample(TileEdit e, int x, int z) {
+        int cx = x < 0 ? 0 : x > tileSize ? 2 : 1;
+        int cz = z < 0 ? 0 : z > tileSize ? 2 : 1;
+        TileHeights h = e.around[cx + cz * 3];
+        if (h == null) {
+            return Float.NaN;
+        }
+        return h.getSample(x - (cx - 1) * tileSize, z - (cz - 1) * tileSize);
+    }
+
+    /**
+     * Do the work on the pool, or here if there is no pool or only one job
+     */
+    private static void run(List<Callable<Void>> work, ExecutorService pool) {
+        try {
+            if (pool == null | work.size() < 2) {
+                for (Callable<Void> job : work) {
+                    job.call();
+                }
+            } else {
+                for (Future<Void> f : pool.invokeAll(work)) {
+                    f.get();
+                }
+            }
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Height edit failed", ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Height edit interrupted", ex);
+        } catch (Exception ex) {
+            throw new IllegalStateException("Height edit failed", ex);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ *
+ */
+package com.radans.TerrainTiler;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.asset.DesktopAssetManager;
+import com.jme3.export.InputCapsule;
+import com.jme3.export.JmeExporter;
+import com.jme3.export.JmeImporter;
+import com.jme3.export.OutputCapsule;
+import com.jme3.export.Savable;
+import com.jme3.export.binary.BinaryImporter;
+import com.jme3.terrain.geomipmap.LODGeomap;
+import com.jme3.terrain.geomipmap.TerrainPatch;
+import com.jme3.terrain.geomipmap.TerrainQuad;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads just the heights out of a j3o tile, for headless tilers and for
+ * checking the map. A j3o tile is a saved TerrainQuad, and loading it whole
+ * builds the mesh of every patch, works out the normals of the whole tile
+ * and loads its material, only for the heights to be copied out.
+ *
+ * Here the importer is handed a class loader that swaps TerrainQuad and
+ * TerrainPatch for the small HeightQuad and HeightPatch, which read only the
+ * fields needed to put the heights back together. Materials, meshes and
+ * controls in the file are never read, so nothing of the scene is built.
+ * The heights are put together as TerrainQuad.getHeightMap does. The
+ * stand-ins write the same fields back, so what was read can be saved again.
+ *
+ * Can be used from many threads at once.
+ */
+final class J3oHeights {
+
+    private final AssetManager standIns;   // gives the importer the stand-in classes
+
+    J3oHeights() {
+        DesktopAssetManager am = new DesktopAssetManager();
+        am.addClassLoader(new StandInLoader());
+        this.standIns = am;
+    }
+
+    /**
+     * Read the heights of a tile
+     *
+     * @param in - InputStream of the j3o, left open
+     * @return TileHeights of the tile
+     * @throws IOException if the j3o can not be read or is not a tile
+     */
+    TileHeights read(InputStream in) throws IOException {
+        BinaryImporter importer = new BinaryImporter();    // not thread safe, so one a read
+        importer.setAssetManager(standIns);
+        Savable root = importer.load(in);
+        if (!(root instanceof HeightQuad)) {
+            throw new IOException("Tile is not a TerrainQuad");
+        }
+        HeightQuad quad = (HeightQuad) root;
+        int patch = quad.patchSize();
+        if (quad.size < 2 | patch < 2) {
+            throw new IOException("Tile has no patches");
+        }
+        return new TileHeights(quad.heights(), quad.size, patch - 1);
+    }
+
+    /**
+     * Read the heights of a tile held in memory, as from a tile pack
+     *
+     * @param j3o - byte array of the j3o
+     * @return TileHeights of the tile
+     * @throws IOException if the j3o can not be read or is not a tile
+     */
+    TileHeights read(byte[] j3o) throws IOException {
+        return read(new ByteArrayInputStream(j3o));
+    }
+
+    /**
+     * Hands out the stand-ins in place of the terrain classes, and leaves
+     * every other class to the tiler's own class loader.
+     */
+    private static class StandInLoader extends ClassLoader {
+
+        StandInLoader() {
+            super(J3oHeights.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (name.equals(TerrainQuad.class.getName())) {
+                return HeightQuad.class;
+            } else if (name.equals(TerrainPatch.class.getName())) {
+                return HeightPatch.class;
+            }
+            return super.loadClass(name, resolve);
+        }
+    }
+
+    /**
+     * Stand-in for a TerrainQuad, only its size, quadrant and children. Must
+     * be public with a public constructor for the importer to make one.
+     */
+    public static class HeightQuad implements Savable {
+
+        int size;                   // samples a side
+        int quadrant;               // 1 to 4 in its parent, 0 for the tile
+        List<Savable> children = new ArrayList<>();
+
+        @Override
+        public void write(JmeExporter ex) throws IOException {
+            OutputCapsule oc = ex.getCapsule(this);
+            oc.write(size, "size", 0);
+            oc.write(quadrant, "quadrant", 0);
+            oc.writeSavableArrayList(new ArrayList<>(children), "children", null);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void read(JmeImporter im) throws IOException {
+            InputCapsule ic = im.getCapsule(this);
+            size = ic.readInt("size", 0);
+            quadrant = ic.readInt("quadrant", 0);
+            ArrayList<Savable> list = ic.readSavableArrayList("children", null);
+            if (list != null) {
+                children = list;
+            }
+        }
+
+        /**
+         * Samples a side of the patches, 0 if there are none
+         */
+        int patchSize() {
+            for (Savable s : children) {
+                if (s instanceof HeightPatch) {
+                    return ((HeightPatch) s).size;
+                } else if (s instanceof HeightQuad) {
+                    return ((HeightQuad) s).patchSize();
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Put the heights of the children back together, each quadrant
+         * sharing its middle row and column with the next
+         */
+        float[] heights() throws IOException {
+            float[] hMap = new float[size * size];
+            int half = (size - 1) / 2;
+            int n = half + 1;
+            for (Savable s : children) {
+                float[] part;
+                int q;
+                if (s instanceof HeightPatch) {
+                    part = ((HeightPatch) s).heights;
+                    q = ((HeightPatch) s).quadrant;
+                } else if (s instanceof HeightQuad) {
+                    part = ((HeightQuad) s).heights();
+                    q = ((HeightQuad) s).quadrant;
+                } else {
+                    continue;
+                }
+                if (part == null || part.length != n * n | q < 1 | q > 4) {
+                    throw new IOException("Tile quadrant does not fit its parent");
+                }
+                int x0 = q >= 3 ? half : 0;             // 3 and 4 are on the right
+                int z0 = (q == 2 | q == 4) ? half : 0;  // 2 and 4 are below
+                for (int z = 0; z < n; z++) {
+                    System.arraycopy(part, z * n, hMap, (z0 + z) * size + x0, n);
+                }
+            }
+            return hMap;
+        }
+    }
+
+    /**
+     * Stand-in for a TerrainPatch, only its size, quadrant and heights
+     */
+    public static class HeightPatch implements Savable {
+
+        int size;                   // samples a side
+        short quadrant;
+        float[] heights;
+
+        @Override
+        public void write(JmeExporter ex) throws IOException {
+            OutputCapsule oc = ex.getCapsule(this);
+            oc.write(size, "size", 16);
+            oc.write(quadrant, "quadrant", (short) 0);
+            oc.write(heights == null ? null : new LODGeomap(size, heights), "geomap", null);
+        }
+
+        @Override
+        public void read(JmeImporter im) throws IOException {
+            InputCapsule ic = im.getCapsule(this);
+            size = ic.readInt("size", 16);
+            quadrant = ic.readShort("quadrant", (short) 0);
+            LODGeomap geomap = (LODGeomap) ic.readSavable("geomap", null);
+            heights = geomap == null ? null : geomap.getHeightArray();
+        }
+    }
+}
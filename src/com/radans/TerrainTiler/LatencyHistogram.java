@@ -0,0 +1,109 @@
+/*
+ *
+ */
+package com.radans.TerrainTiler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of durations in buckets growing by powers of 2 from one microsecond,
+ * each power split into SUB buckets, so percentiles come out within about
+ * 6% at any scale in a fixed few KB. Recording is lock free and never
+ * allocates, so it can be done from the render and loader threads.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1 << SUB_BITS;   // buckets a power of 2
+    private static final int OCTAVES = 40;          // up to about 12 days
+
+    private final AtomicLongArray counts = new AtomicLongArray(OCTAVES * SUB);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record one duration
+     *
+     * @param nanos - long duration in nanoseconds
+     */
+    void record(long nanos) {
+        long us = Math.max(nanos / 1000, 0);
+        counts.incrementAndGet(bucket(us));
+        total.incrementAndGet();
+        long m = max.get();
+        while (nanos > m && !max.compareAndSet(m, nanos)) {
+            m = max.get();
+        }
+    }
+
+    /**
+     * Bucket of a duration, the first SUB hold 0 to SUB - 1 microseconds and
+     * each later run of SUB splits one power of 2
+     */
+    private static int bucket(long us) {
+        if (us < SUB) {
+            return (int) us;
+        }
+        int octave = 63 - Long.numberOfLeadingZeros(us);    // us >= 2^octave
+        int sub = (int) (us >>> (octave - SUB_BITS)) & (SUB - 1);
+        return Math.min((octave - SUB_BITS + 1) * SUB + sub, OCTAVES * SUB - 1);
+    }
+
+    /**
+     * Lowest duration in microseconds that lands in a bucket
+     */
+    private static long bucketStart(int b) {
+        if (b < SUB) {
+            return b;
+        }
+        int octave = b / SUB + SUB_BITS - 1;
+        return (1L << octave) | ((long) (b % SUB) << (octave - SUB_BITS));
+    }
+
+    long getCount() {
+        return total.get();
+    }
+
+    /**
+     * Get a percentile
+     *
+     * @param percentile - double 0 to 100
+     * @return double milliseconds at the middle of the bucket holding the
+     * percentile, 0 if nothing recorded
+     */
+    double getPercentile(double percentile) {
+        long n = total.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(n * Math.max(0, Math.min(percentile, 100)) / 100);
+        long seen = 0;
+        for (int b = 0; b < counts.length(); b++) {
+            seen += counts.get(b);
+            if (seen >= Math.max(rank, 1)) {
+                long lo = bucketStart(b);
+                long hi = b + 1 < counts.length() ? bucketStart(b + 1) : lo;
+                return Math.min((lo + hi) / 2000.0, getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Get the longest duration recorded
+     *
+     * @return double milliseconds
+     */
+    double getMax() {
+        return max.get() / 1000000.0;
+    }
+
+    void reset() {
+        for (int b = 0; b < counts.length(); b++) {
+            counts.set(b, 0);
+        }
+        total.set(0);
+        max.set(0);
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ *
+ */
+package com.radans.TerrainTiler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * The settings read from a tiledTerrain.map file, parsed in one pass over
+ * the file and checked as a whole before the tiler uses any of them.
+ *
+ * Each line is a name and value separated by a colon, in any order. Blank
+ * lines and lines starting with # are skipped, names are not case
+ * sensitive. The first line must name the file as a tiledTerrain map.
+ *      tiledTerrain : <version>
+ *      useJars   : <true|false>            default false
+ *      numTilesX : <16...4096>
+ *      numTilesZ : <16...4096>
+ *      tileSize  : <256|512|1024|2048>
+ *      tileScale : <1...>                  default 1
+ *      tileType  : <terrain|raw|raw16|pack>     image and node are reserved
+ *      tileFile  : <filename>              raw or pack file, optional
+ *      tileIndex : <filename>              TileIndex of raw or j3o tiles, optional
+ *      tileOverview : <filename>           TileOverview for the far field, optional
+ *
+ * Every problem found is reported in the one IOException, rather than
+ * stopping at the first.
+ */
+final class MapDescriptor {
+
+    int version;
+    boolean useJars;
+    int numTilesX;
+    int numTilesZ;
+    int tileSize;
+    int tileScale = 1;
+    String tileType;
+    String tileFile;            // null for the default for the type
+    String tileIndex;           // null if there is none
+    String tileOverview;        // null if there is none
+
+    private MapDescriptor() {
+    }
+
+    /**
+     * Read and check a map file
+     *
+     * @param mapFile - File to read
+     * @return MapDescriptor of the settings
+     * @throws IOException if the file can not be read or is not a valid map
+     */
+    static MapDescriptor read(File mapFile) throws IOException {
+        MapDescriptor map = new MapDescriptor();
+        List<String> errors = new ArrayList<>();
+        List<String> seen = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(mapFile), StandardCharsets.UTF_8))) {
+            String line;
+            int lineNo = 0;
+            while ((line = in.readLine()) != null) {
+                lineNo++;
+                line = line.trim();
+                if (line.isEmpty() | line.startsWith("#")) {
+                    continue;
+                }
+                int colon = line.indexOf(':');
+                if (colon < 0) {
+                    errors.add("line " + lineNo + ": expected name : value");
+                    continue;
+                }
+                String name = line.substring(0, colon).trim().toLowerCase();
+                String value = line.substring(colon + 1).trim();
+                if (seen.isEmpty() & !name.equals("tiledterrain")) {
+                    throw new IOException("Not a tiledTerrain map file: " + mapFile);
+                }
+                if (seen.contains(name)) {
+                    errors.add("line " + lineNo + ": " + name + " given twice");
+                    continue;
+                }
+                seen.add(name);
+                map.set(name, value, lineNo, errors);
+            }
+        }
+        if (seen.isEmpty()) {
+            throw new IOException("Empty map file: " + mapFile);
+        }
+        map.check(seen, errors);
+        if (!errors.isEmpty()) {
+            StringBuilder msg = new StringBuilder("Invalid map file ").append(mapFile);
+            for (String e : errors) {
+                msg.append("\n    ").append(e);
+            }
+            throw new IOException(msg.toString());
+        }
+        return map;
+    }
+
+    /**
+     * Store one setting
+     */
+    private void set(String name, String value, int lineNo, List<String> errors) {
+        switch (name) {
+            case "tiledterrain":
+                version = number(name, value, lineNo, errors);
+                break;
+            case "usejars":
+                if (!value.equalsIgnoreCase("true") & !value.equalsIgnoreCase("false")) {
+                    errors.add("line " + lineNo + ": useJars must be true or false");
+                }
+                useJars = Boolean.parseBoolean(value);
+                break;
+            case "numtilesx":
+                numTilesX = number(name, value, lineNo, errors);
+                break;
+            case "numtilesz":
+                numTilesZ = number(name, value, lineNo, errors);
+                break;
+            case "tilesize":
+                tileSize = number(name, value, lineNo, errors);
+                break;
+            case "tilescale":
+                tileScale = number(name, value, lineNo, errors);
+                break;
+            case "tiletype":
+                tileType = value;
+                break;
+            case "tilefile":
+                tileFile = value;
+                break;
+            case "tileindex":
+                tileIndex = value;
+                break;
+            case "tileoverview":
+                tileOverview = value;
+                break;
+            default:
+                TerrainTiler.tLog.log(Level.WARNING,
+                        "Map file line {0}: unknown setting {1} ignored", new Object[]{lineNo, name});
+        }
+    }
+
+    private static int number(String name, String value, int lineNo, List<String> errors) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            errors.add("line " + lineNo + ": " + name + " is not a number: " + value);
+            return 0;
+        }
+    }
+
+    /**
+     * Check the settings hang together
+     */
+    private void check(List<String> seen, List<String> errors) {
+        String[] required = {"numtilesx", "numtilesz", "tilesize", "tiletype"};
+        for (String name : required) {
+            if (!seen.contains(name)) {
+                errors.add(name + " missing");
+            }
+        }
+        if (seen.contains("numtilesx") & (numTilesX < 16 | numTilesX > 4096)) {
+            errors.add("numTilesX must be 16 to 4096, not " + numTilesX);
+        }
+        if (seen.contains("numtilesz") & (numTilesZ < 16 | numTilesZ > 4096)) {
+            errors.add("numTilesZ must be 16 to 4096, not " + numTilesZ);
+        }
+        if (seen.contains("tilesize") & tileSize != 256 & tileSize != 512 & tileSize != 1024 & tileSize != 2048) {
+            errors.add("tileSize must be 256, 512, 1024 or 2048, not " + tileSize);
+        }
+        if (tileScale <= 0) {
+            errors.add("tileScale must be at least 1, not " + tileScale);
+        }
+        if (tileType != null) {
+            switch (tileType) {
+                case "terrain":
+                case "raw":
+                case "raw16":
+                case "pack":
+                    break;
+                case "image":
+                case "node":
+                    errors.add("tileType " + tileType + " is not supported yet");
+                    break;
+                default:
+                    errors.add("unknown tileType " + tileType);
+            }
+            if (tileFile != null & !isRaw() & !isPack()) {
+                errors.add("tileFile is only used with raw, raw16 or pack tiles");
+            }
+            if (tileIndex != null & isPack()) {
+                errors.add("tileIndex is not used with pack tiles, the pack has its own");
+            }
+        }
+        if (useJars & (isRaw() | isPack())) {
+            errors.add("useJars can not be used with raw or pack tiles");
+        }
+    }
+
+    boolean isRaw() {
+        return tileType != null && tileType.startsWith("raw");
+    }
+
+    boolean isPack() {
+        return "pack".equals(tileType);
+    }
+
+    /**
+     * Name of the raw or pack file, defaulting on the tile type
+     */
+    String getTileFile() {
+        if (tileFile != null) {
+            return tileFile;
+        }
+        return isPack() ? "tiledTerrain.pack" : "tiledTerrain.raw";
+    }
+}
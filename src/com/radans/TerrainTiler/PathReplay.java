@@ -0,0 +1,522 @@
+/*
+ *
+ */
+package com.radans.TerrainTiler;
+
+import com.jme3.app.SimpleApplication;
+import com.jme3.app.state.AppState;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import com.jme3.scene.Node;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Headless tool that flies a camera along a path over a map and reports how
+ * well the tiler kept up, so loader and scheduler changes can be compared on
+ * a build machine with no display or GPU. The tiler runs with its full scene
+ * graph, LOD and attach work, driven frame by frame from here; only the
+ * rendering is left out.
+ *
+ * The camera moves between the waypoints of the path at a steady speed. A
+ * path file holds one waypoint a line as x y z world coordinates, blank
+ * lines and lines starting with # are skipped, so a recorded flight is just
+ * its camera locations written out. Without a path the camera flies a
+ * scripted route across the middle and corners of the map.
+ *
+ * Frames are run at a fixed rate and paced to the wall clock, so the loader
+ * threads get the time they would in a game.
+ *
+ * The report gives the time from each tile coming into the grid to it being
+ * in the scene, the frames that took longer than the frame budget, peak
+ * heap and direct memory, and the tilers own TilerMetrics.
+ *
+ * Usage: PathReplay (-map file | -synthetic tiles) [options]
+ *      -map file       tiledTerrain.map of the tiles to fly over
+ *      -synthetic n    bake a synthetic map of n tiles a side to a temporary
+ *                      directory and fly over that
+ *      -tileSize n     tile size of a synthetic map, default 256
+ *      -path file      waypoints to fly, default a scripted route
+ *      -speed f        world units a second, default 200
+ *      -altitude f     height of the scripted route, default 100
+ *      -fps n          frames a second, default 60
+ *      -budget ms      frame budget, default 1000 / fps
+ *      -grid n         grid size, default 5
+ *      -threads n      loader threads, default the tilers own
+ *      -prefetch f     prefetch distance, default off
+ *      -memory mb      memory budget of the tiles, default no limit
+ *
+ * @author Radan Vowles
+ */
+public class PathReplay {
+
+    private static final Logger rLog = Logger.getLogger(PathReplay.class.getCanonicalName());
+    private final String mapFile;
+    private final List<Vector3f> path;
+    private float speed = 200f;
+    private int fps = 60;
+    private float budget;               // ms, 0 for 1000 / fps
+    private int gridSize = 5;
+    private int loaderThreads;          // 0 for the tilers default
+    private float prefetchDistance;
+    private long memoryBudget;          // bytes, 0 for no limit
+
+    /**
+     * Create a replay
+     *
+     * @param map - String full path of the tiledTerrain.map file
+     * @param waypoints - List of Vector3f world locations to fly through, at
+     * least 2
+     */
+    public PathReplay(String map, List<Vector3f> waypoints) {
+        if (waypoints.size() < 2) {
+            throw new IllegalArgumentException("A path needs at least 2 waypoints");
+        }
+        this.mapFile = map;
+        this.path = new ArrayList<>(waypoints);
+    }
+
+    public void setSpeed(float unitsPerSecond) {
+        this.speed = unitsPerSecond;
+    }
+
+    public void setFps(int framesPerSecond) {
+        this.fps = framesPerSecond;
+    }
+
+    public void setBudget(float millis) {
+        this.budget = millis;
+    }
+
+    public void setGridSize(int size) {
+        this.gridSize = size;
+    }
+
+    public void setLoaderThreads(int threads) {
+        this.loaderThreads = threads;
+    }
+
+    public void setPrefetchDistance(float distance) {
+        this.prefetchDistance = distance;
+    }
+
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    /**
+     * Fly the path
+     *
+     * @return Report of the flight
+     * @throws IOException if the map can not be loaded
+     * @throws InterruptedException if interrupted while pacing frames
+     */
+    public Report run() throws IOException, InterruptedException {
+        SimpleApplication app = new SimpleApplication(new AppState[0]) {
+            @Override
+            public void simpleInitApp() {
+            }
+        };
+        Camera cam = new Camera(1280, 720);
+        cam.setFrustumPerspective(45f, 1280f / 720f, 1f, 10000f);
+        cam.setLocation(path.get(0));
+        TerrainTiler tiler = new TerrainTiler(cam, mapFile, app);
+        try {
+            if (!tiler.valid) {
+                throw new IOException("Could not load map " + mapFile);
+            }
+            tiler.setGridSize(gridSize);
+            if (loaderThreads > 0) {
+                tiler.setLoaderThreads(loaderThreads);
+            }
+            tiler.setPrefetchDistance(prefetchDistance);
+            tiler.setMemoryBudget(memoryBudget);
+            Node root = new Node("Replay Root");
+            root.attachChild(tiler);
+
+            Report report = new Report();
+            report.frameBudget = budget > 0 ? budget : 1000f / fps;
+            float tpf = 1f / fps;
+            long frameNanos = 1000000000L / fps;
+            int tileWSize = tiler.getTileSize() * tiler.getTileScale();
+            Map<Long, Long> waiting = new HashMap<>();   // tiles in the grid not yet in the scene, since when
+            Set<Long> resident = new HashSet<>();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                pool.resetPeakUsage();
+            }
+            BufferPoolMXBean direct = directPool();
+
+            tiler.setEnabled(true);
+            long start = System.nanoTime();
+            long next = start;
+            int leg = 0;
+            float along = 0;            // distance along the current leg
+            Vector3f loc = new Vector3f();
+            Vector3f dir = new Vector3f();
+            while (leg < path.size() - 1) {
+                // move along the path
+                Vector3f from = path.get(leg);
+                Vector3f to = path.get(leg + 1);
+                float length = from.distance(to);
+                along += speed * tpf;
+                while (along > length && leg < path.size() - 1) {
+                    along -= length;
+                    leg++;
+                    if (leg < path.size() - 1) {
+                        from = path.get(leg);
+                        to = path.get(leg + 1);
+                        length = from.distance(to);
+                    }
+                }
+                if (leg < path.size() - 1) {
+                    loc.interpolateLocal(from, to, length > 0 ? along / length : 1f);
+                    dir.set(to).subtractLocal(from).normalizeLocal();
+                } else {
+                    loc.set(to);
+                }
+                cam.setLocation(loc);
+                if (dir.lengthSquared() > 0) {
+                    cam.lookAtDirection(dir, Vector3f.UNIT_Y);
+                }
+
+                // one frame of tiler and scene work, timed
+                long t0 = System.nanoTime();
+                app.getStateManager().update(tpf);
+                root.updateLogicalState(tpf);
+                root.updateGeometricState();
+                long took = System.nanoTime() - t0;
+                report.frames++;
+                report.frameTimes.record(took);
+                if (took / 1000000f > report.frameBudget) {
+                    report.framesOverBudget++;
+                }
+
+                // follow tiles from entering the grid to being in the scene
+                long now = System.nanoTime();
+                int cx = (int) loc.x / tileWSize;
+                int cz = (int) loc.z / tileWSize;
+                GridWindow window = tiler.getGridWindow();
+                int sector = GridWindow.sector(dir.x, dir.z);
+                int r = window.getRadius();
+                Set<Long> inGrid = new HashSet<>();   // tx in the low half, tz in the high
+                for (int dz = -r; dz <= r; dz++) {
+                    for (int dx = -r; dx <= r; dx++) {
+                        int tx = cx + dx;
+                        int tz = cz + dz;
+                        if (tx >= 0 & tz >= 0 & tx < tiler.getNumTilesX() & tz < tiler.getNumTilesZ()
+                                && window.contains(dx, dz, sector)) {
+                            inGrid.add(tx + ((long) tz << 32));
+                        }
+                    }
+                }
+                TerrainSnapshot snap = tiler.getSnapshot();
+                for (Long key : inGrid) {
+                    if (!resident.contains(key) & !waiting.containsKey(key)) {
+                        waiting.put(key, now);
+                    }
+                }
+                for (Iterator<Map.Entry<Long, Long>> it = waiting.entrySet().iterator(); it.hasNext();) {
+                    Map.Entry<Long, Long> e = it.next();
+                    long key = e.getKey();
+                    if (snap.hasTile((int) key, (int) (key >>> 32))) {
+                        report.tileTimes.record(now - e.getValue());
+                        resident.add(key);
+                        it.remove();
+                    } else if (!inGrid.contains(key)) {
+                        report.tilesMissed++;       // left the grid before it was ready
+                        it.remove();
+                    }
+                }
+                resident.retainAll(inGrid);
+
+                report.peakDirect = Math.max(report.peakDirect, direct != null ? direct.getMemoryUsed() : 0);
+                report.peakTiles = Math.max(report.peakTiles, tiler.getMemoryUsed());
+                next += frameNanos;
+                long sleep = next - System.nanoTime();
+                if (sleep > 0) {
+                    Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+                } else {
+                    next = System.nanoTime();   // fell behind, don't try to catch up
+                }
+            }
+            report.seconds = (System.nanoTime() - start) / 1e9;
+            report.tilesNeverReady = waiting.size();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    report.peakHeap += pool.getPeakUsage().getUsed();
+                }
+            }
+            report.metrics = tiler.getMetrics();
+            return report;
+        } finally {
+            tiler.close();
+        }
+    }
+
+    private static BufferPoolMXBean directPool() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The scripted route, from the middle of the map out to each corner in
+     * turn, crossing the map both ways
+     *
+     * @param numTilesX - int tiles in X
+     * @param numTilesZ - int tiles in Z
+     * @param tileWSize - int world size of a tile
+     * @param altitude - float height to fly at
+     * @return List of waypoints
+     */
+    public static List<Vector3f> scriptedPath(int numTilesX, int numTilesZ, int tileWSize, float altitude) {
+        float x0 = 2.5f * tileWSize;
+        float z0 = 2.5f * tileWSize;
+        float x1 = (numTilesX - 2.5f) * tileWSize;
+        float z1 = (numTilesZ - 2.5f) * tileWSize;
+        float mx = (x0 + x1) / 2;
+        float mz = (z0 + z1) / 2;
+        List<Vector3f> route = new ArrayList<>();
+        route.add(new Vector3f(mx, altitude, mz));
+        route.add(new Vector3f(x0, altitude, z0));
+        route.add(new Vector3f(x1, altitude, z1));
+        route.add(new Vector3f(x1, altitude, z0));
+        route.add(new Vector3f(x0, altitude, z1));
+        route.add(new Vector3f(mx, altitude, mz));
+        return route;
+    }
+
+    /**
+     * Read a path file of x y z waypoints
+     *
+     * @param pathFile - File to read
+     * @return List of waypoints
+     * @throws IOException if the file can not be read or a line is not 3
+     * numbers
+     */
+    public static List<Vector3f> readPath(File pathFile) throws IOException {
+        List<Vector3f> route = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(pathFile), StandardCharsets.UTF_8))) {
+            String line;
+            int lineNo = 0;
+            while ((line = in.readLine()) != null) {
+                lineNo++;
+                line = line.trim();
+                if (line.isEmpty() | line.startsWith("#")) {
+                    continue;
+                }
+                String[] v = line.split("[\\s,]+");
+                try {
+                    if (v.length != 3) {
+                        throw new NumberFormatException();
+                    }
+                    route.add(new Vector3f(Float.parseFloat(v[0]), Float.parseFloat(v[1]), Float.parseFloat(v[2])));
+                } catch (NumberFormatException ex) {
+                    throw new IOException(pathFile + " line " + lineNo + ": expected x y z");
+                }
+            }
+        }
+        return route;
+    }
+
+    /**
+     * What happened on a flight. Times are in milliseconds.
+     */
+    public static class Report {
+
+        public long frames;
+        public long framesOverBudget;
+        public float frameBudget;
+        public double seconds;
+        public long tilesMissed;            // left the grid before they were ready
+        public long tilesNeverReady;        // still not ready at the end
+        public long peakHeap;               // bytes
+        public long peakDirect;             // bytes of direct buffers
+        public long peakTiles;              // bytes held by tiles, as the tiler estimates it
+        public TilerMetrics metrics;
+        final LatencyHistogram tileTimes = new LatencyHistogram();
+        final LatencyHistogram frameTimes = new LatencyHistogram();
+
+        /**
+         * Get a percentile of the time from a tile coming into the grid to it
+         * being in the scene
+         *
+         * @param percentile - double 0 to 100
+         * @return double milliseconds
+         */
+        public double getTileTime(double percentile) {
+            return tileTimes.getPercentile(percentile);
+        }
+
+        public long getTilesReady() {
+            return tileTimes.getCount();
+        }
+
+        /**
+         * Get a percentile of the frame time
+         *
+         * @param percentile - double 0 to 100
+         * @return double milliseconds
+         */
+        public double getFrameTime(double percentile) {
+            return frameTimes.getPercentile(percentile);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("frames            %d in %.1fs, %d over %.1fms budget (%.2f%%)%n",
+                    frames, seconds, framesOverBudget, frameBudget, frames == 0 ? 0 : 100.0 * framesOverBudget / frames));
+            sb.append(String.format("frame ms          p50 %.2f  p99 %.2f  max %.2f%n",
+                    frameTimes.getPercentile(50), frameTimes.getPercentile(99), frameTimes.getMax()));
+            sb.append(String.format("tiles ready       %d, %d left the grid first, %d never ready%n",
+                    tileTimes.getCount(), tilesMissed, tilesNeverReady));
+            sb.append(String.format("tile ready ms     p50 %.1f  p90 %.1f  p99 %.1f  max %.1f%n",
+                    tileTimes.getPercentile(50), tileTimes.getPercentile(90), tileTimes.getPercentile(99),
+                    tileTimes.getMax()));
+            sb.append(String.format("peak memory MB    heap %.1f  direct %.1f  tiles %.1f%n",
+                    peakHeap / 1048576.0, peakDirect / 1048576.0, peakTiles / 1048576.0));
+            if (metrics != null) {
+                sb.append(String.format("tiles loaded      %d, load ms p50 %.1f  p99 %.1f, %.1f MB read%n",
+                        metrics.getTilesLoaded(), metrics.getLoadLatencyP50(), metrics.getLoadLatencyP99(),
+                        metrics.getBytesRead() / 1048576.0));
+                sb.append(String.format("cache hit rate    %.2f%n", metrics.getCacheHitRate()));
+                sb.append(String.format("late cells        %d of %d entered%n",
+                        metrics.getLateCells(), metrics.getCellsEntered()));
+                sb.append(String.format("tiles shed        %d%n", metrics.getTilesShed()));
+            }
+            return sb.toString();
+        }
+    }
+
+    public static void main(String[] args) {
+        String map = null;
+        String pathName = null;
+        int synthetic = 0;
+        int tileSize = 256;
+        float altitude = 100f;
+        File bakedDir = null;
+        int exitCode = 0;
+        try {
+            float speed = 200f;
+            int fps = 60;
+            float budget = 0;
+            int grid = 5;
+            int threads = 0;
+            float prefetch = 0;
+            long memory = 0;
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-map":
+                        map = args[++i];
+                        break;
+                    case "-synthetic":
+                        synthetic = Integer.parseInt(args[++i]);
+                        break;
+                    case "-tileSize":
+                        tileSize = Integer.parseInt(args[++i]);
+                        break;
+                    case "-path":
+                        pathName = args[++i];
+                        break;
+                    case "-speed":
+                        speed = Float.parseFloat(args[++i]);
+                        break;
+                    case "-altitude":
+                        altitude = Float.parseFloat(args[++i]);
+                        break;
+                    case "-fps":
+                        fps = Integer.parseInt(args[++i]);
+                        break;
+                    case "-budget":
+                        budget = Float.parseFloat(args[++i]);
+                        break;
+                    case "-grid":
+                        grid = Integer.parseInt(args[++i]);
+                        break;
+                    case "-threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "-prefetch":
+                        prefetch = Float.parseFloat(args[++i]);
+                        break;
+                    case "-memory":
+                        memory = Long.parseLong(args[++i]) * 1024 * 1024;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if ((map == null) == (synthetic == 0)) {
+                throw new IllegalArgumentException("one of -map or -synthetic is required");
+            }
+            if (fps <= 0 | speed <= 0) {
+                throw new IllegalArgumentException("-fps and -speed must be more than 0");
+            }
+            if (tileSize != 256 & tileSize != 512 & tileSize != 1024 & tileSize != 2048) {
+                throw new IllegalArgumentException("tileSize must be 256, 512, 1024 or 2048");
+            }
+            if (synthetic > 0) {
+                bakedDir = Files.createTempDirectory("ttreplay").toFile();
+                TileBaker baker = new TileBaker(new TileBaker.WaveSource(synthetic * tileSize + 1), bakedDir,
+                        tileSize, 1, "pack16", Runtime.getRuntime().availableProcessors());
+                map = baker.bake().getPath();
+            }
+            List<Vector3f> route;
+            if (pathName != null) {
+                route = readPath(new File(pathName));
+            } else {
+                MapDescriptor desc = MapDescriptor.read(new File(map));
+                int nx = synthetic > 0 ? synthetic : desc.numTilesX;   // a synthetic map is padded out to 16
+                int nz = synthetic > 0 ? synthetic : desc.numTilesZ;
+                route = scriptedPath(nx, nz, desc.tileSize * desc.tileScale, altitude);
+            }
+            PathReplay replay = new PathReplay(map, route);
+            replay.setSpeed(speed);
+            replay.setFps(fps);
+            replay.setBudget(budget);
+            replay.setGridSize(grid);
+            replay.setLoaderThreads(threads);
+            replay.setPrefetchDistance(prefetch);
+            replay.setMemoryBudget(memory);
+            Report report = replay.run();
+            System.out.print(report);
+        } catch (IllegalArgumentException | IOException | InterruptedException ex) {
+            rLog.log(Level.SEVERE, "Replay failed: {0}", ex.getMessage());
+            exitCode = 1;
+        } finally {
+            if (bakedDir != null) {
+                File[] files = bakedDir.listFiles();
+                if (files != null) {
+                    for (File f : files) {
+                        f.delete();
+                    }
+                }
+                bakedDir.delete();
+            }
+        }
+        System.exit(exitCode);
+    }
+}
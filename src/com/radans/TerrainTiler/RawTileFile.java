@@ -0,0 +1,138 @@
+/*
+ *
+ */
+package com.radans.TerrainTiler;
+
+import com.jme3.math.FastMath;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+
+/**
+ * Reads tile heightmaps from one large flat file of heights using memory
+ * mapped NIO buffers, so no object graph has to be deserialized per tile.
+ *
+ * The file holds every tile one after another, tile (x, z) being tile number
+ * x + z * numTilesX. Each tile is (tileSize + 1) * (tileSize + 1) little
+ * endian samples in rows of increasing z, with edges repeated in the
+ * neighbouring tiles. Samples are either 32 bit floats or 16 bit half floats.
+ */
+class RawTileFile {
+
+    private static final long SEGMENT_BYTES = 1L << 30;     // largest single mapping
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int numTilesX;
+    private final int numTilesZ;
+    private final int samples;                  // samples in one tile
+    private final boolean halfFloat;            // true if samples are 16 bit
+    private final long tileBytes;               // bytes of one tile
+    private final int tilesPerSegment;          // tiles in one mapped segment
+    private final AtomicReferenceArray<MappedByteBuffer> segments;  // mapped lazily
+
+    /**
+     * Open a raw tile file for reading
+     *
+     * @param rawFile - File of heights
+     * @param nTilesX - number of tiles in the X direction
+     * @param nTilesZ - number of tiles in the Z direction
+     * @param tSize - size of each tile, tiles hold tSize + 1 samples a side
+     * @param half - true if samples are half floats, false for floats
+     * @throws IOException if the file can not be opened or is too short
+     */
+    RawTileFile(File rawFile, int nTilesX, int nTilesZ, int tSize, boolean half) throws IOException {
+        this.file = new RandomAccessFile(rawFile, "r");
+        this.channel = file.getChannel();
+        this.numTilesX = nTilesX;
+        this.numTilesZ = nTilesZ;
+        this.samples = (tSize + 1) * (tSize + 1);
+        this.halfFloat = half;
+        this.tileBytes = (long) samples * (half ? 2 : 4);
+        this.tilesPerSegment = (int) Math.max(1, SEGMENT_BYTES / tileBytes);
+        long tiles = (long) numTilesX * numTilesZ;
+        if (channel.size() < tiles * tileBytes) {
+            file.close();
+            throw new IOException("Raw file too short for " + nTilesX + "x" + nTilesZ + " tiles: " + rawFile);
+        }
+        this.segments = new AtomicReferenceArray<>((int) ((tiles + tilesPerSegment - 1) / tilesPerSegment));
+    }
+
+    /**
+     * Bytes each tile takes in the file
+     */
+    long getTileBytes() {
+        return tileBytes;
+    }
+
+    /**
+     * Read the heights of one tile out of the mapped file
+     *
+     * @param tileX - Tile X location
+     * @param tileZ - Tile Z location
+     * @return float array of (tileSize + 1) squared heights
+     * @throws IOException if the tile is outside the map or past the end of
+     * the file
+     */
+    float[] readTile(int tileX, int tileZ) throws IOException {
+        if (tileX < 0 | tileX >= numTilesX | tileZ < 0 | tileZ >= numTilesZ) {
+            throw new IOException("Tile outside raw file: " + tileX + "," + tileZ);
+        }
+        long tile = tileX + (long) tileZ * numTilesX;
+        ByteBuffer buf = segment((int) (tile / tilesPerSegment)).duplicate();
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        int offset = (int) ((tile % tilesPerSegment) * tileBytes);
+        if (offset + tileBytes > buf.capacity()) {
+            throw new IOException("Tile past end of raw file: " + tileX + "," + tileZ);
+        }
+        buf.position(offset);
+        float[] heights = new float[samples];
+        if (halfFloat) {
+            ShortBuffer sb = buf.asShortBuffer();
+            for (int i = 0; i < samples; i++) {
+                heights[i] = FastMath.convertHalfToFloat(sb.get(i));
+            }
+        } else {
+            buf.asFloatBuffer().get(heights);
+        }
+        return heights;
+    }
+
+    /**
+     * Get a mapped segment of the file, mapping it on first use
+     */
+    private MappedByteBuffer segment(int index) throws IOException {
+        MappedByteBuffer seg = segments.get(index);
+        if (seg == null) {
+            long start = index * (long) tilesPerSegment * tileBytes;
+            long length = Math.min(tilesPerSegment * tileBytes, channel.size() - start);
+            if (length < tileBytes) {
+                throw new IOException("Tile past end of raw file");
+            }
+            seg = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            if (!segments.compareAndSet(index, null, seg)) {
+                seg = segments.get(index);
+            }
+        }
+        return seg;
+    }
+
+    /**
+     * Close the file, tiles can no longer be read
+     */
+    void close() {
+        try {
+            channel.close();
+            file.close();
+        } catch (IOException ex) {
+            TerrainTiler.tLog.log(Level.WARNING, "Error closing raw tile file {0}", ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ *
+ */
+package com.radans.TerrainTiler;
+
+import com.jme3.terrain.geomipmap.TerrainQuad;
+import java.nio.FloatBuffer;
+
+/**
+ * An immutable view of the tiles attached to the scene at one moment. The
+ * tiler publishes a new snapshot each time tiles are attached, removed or
+ * edited, so any number of threads can sample heights and normals from the
+ * one they hold without locking and without ever seeing a tile part way
+ * through being attached or detached.
+ *
+ * Get the current snapshot with TerrainTiler.getSnapshot(). Hold on to it for
+ * a whole batch of queries to get answers that are consistent with each other,
+ * or get a fresh one to see the latest tiles. All query methods allocate
+ * nothing.
+ *
+ * @author Radan Vowles
+ */
+public final class TerrainSnapshot {
+
+    private final long version;
+    private final int count;
+    private final int[] keys;               // open addressing, -1 for empty
+    private final TileHeights[] heights;
+    private final TerrainQuad[] quads;
+    private final int mask;
+    private final int stride;               // key = x + z * stride
+    private final int tileWSize;
+    private final float tileScale;
+
+    /**
+     * Build a snapshot of the attached tiles
+     *
+     * @param ver - long version number
+     * @param tiles - Tile array of attached tiles, the first n are used
+     * @param n - int number of tiles
+     * @param keyStride - int multiplier of z in tile keys
+     * @param wSize - int world size of a tile
+     * @param scale - float scale of each tile
+     */
+    TerrainSnapshot(long ver, TileRegistry.Tile[] tiles, int n, int keyStride, int wSize, float scale) {
+        this.version = ver;
+        this.count = n;
+        this.stride = keyStride;
+        this.tileWSize = wSize;
+        this.tileScale = scale;
+        int cap = 8;
+        while (cap < n * 2) {
+            cap *= 2;
+        }
+        this.mask = cap - 1;
+        this.keys = new int[cap];
+        this.heights = new TileHeights[cap];
+        this.quads = new TerrainQuad[cap];
+        for (int i = 0; i < cap; i++) {
+            keys[i] = -1;
+        }
+        for (int i = 0; i < n; i++) {
+            int slot = hash(tiles[i].key);
+            while (keys[slot] != -1) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = tiles[i].key;
+            heights[slot] = tiles[i].heights;
+            quads[slot] = tiles[i].quad;
+        }
+    }
+
+    private int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Slot of a tile key, or -1 if the tile is not in the snapshot
+     */
+    private int find(int key) {
+        if (key < 0) {
+            return -1;
+        }
+        for (int i = hash(key);; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return i;
+            }
+            if (keys[i] == -1) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Get the version of this snapshot, each published snapshot has a higher
+     * version than the one before
+     *
+     * @return long version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the number of tiles in this snapshot
+     *
+     * @return int of tiles
+     */
+    public int getTileCount() {
+        return count;
+    }
+
+    /**
+     * Check if a tile is in this snapshot
+     *
+     * @param tileX - Tile X location
+     * @param tileZ - Tile Z location
+     * @return true if the tile was attached when the snapshot was taken
+     */
+    public boolean hasTile(int tileX, int tileZ) {
+        return find(tileX + tileZ * stride) >= 0;
+    }
+
+    /**
+     * Get the quad of a tile by key
+     */
+    TerrainQuad getQuad(int key) {
+        int i = find(key);
+        return i < 0 ? null : quads[i];
+    }
+
+    /**
+     * Get the query heights of a tile by key
+     */
+    TileHeights getTileHeights(int key) {
+        int i = find(key);
+        return i < 0 ? null : heights[i];
+    }
+
+    /**
+     * Key of the tile holding a world location
+     */
+    private int keyAt(float x, float z) {
+        return (int) x / tileWSize + ((int) z / tileWSize) * stride;
+    }
+
+    /**
+     * Get the interpolated height at a world location
+     *
+     * @param x - float World X coordinate
+     * @param z - float World Z coordinate
+     * @return float of the height or NaN if no tile there
+     */
+    public float getHeight(float x, float z) {
+        int tx = (int) x / tileWSize;
+        int tz = (int) z / tileWSize;
+        TileHeights th = getTileHeights(keyAt(x, z));
+        return th == null ? Float.NaN
+                : th.getHeight((x - tx * tileWSize) / tileScale, (z - tz * tileWSize) / tileScale);
+    }
+
+    /**
+     * Get the normal at a world location
+     *
+     * @param x - float World X coordinate
+     * @param z - float World Z coordinate
+     * @param out - float array to write x, y, z of the normal into
+     * @param offset - int index of x in out
+     * @return false if no tile there, out is left untouched
+     */
+    public boolean getNormal(float x, float z, float[] out, int offset) {
+        int tx = (int) x / tileWSize;
+        int tz = (int) z / tileWSize;
+        TileHeights th = getTileHeights(keyAt(x, z));
+        return th != null && th.getNormal((x - tx * tileWSize) / tileScale,
+                (z - tz * tileWSize) / tileScale, tileScale, out, offset);
+    }
+
+    /**
+     * Get the unscaled height of the grid point nearest a world location
+     *
+     * @param x - float World X coordinate
+     * @param z - float World Z coordinate
+     * @return float of the height or NaN if no tile there
+     */
+    public float getHeightmapHeight(float x, float z) {
+        int tx = (int) x / tileWSize;
+        int tz = (int) z / tileWSize;
+        TileHeights th = getTileHeights(keyAt(x, z));
+        if (th == null) {
+            return Float.NaN;
+        }
+        int sx = Math.round((x - tx * tileWSize) / tileScale);
+        int sz = Math.round((z - tz * tileWSize) / tileScale);
+        int last = th.getSize() - 1;
+        if (sx < 0 | sz < 0 | sx > last | sz > last) {
+            return Float.NaN;
+        }
+        return th.getSample(sx, sz);
+    }
+
+    /**
+     * Get the interpolated heights of many points at once. Tiles are looked
+     * up once per run of points falling in the same tile, so passing nearby
+     * points next to each other is fastest.
+     *
+     * @param x - float array of World X coordinates
+     * @param z - float array of World Z coordinates
+     * @param out - float array to fill, NaN where there is no tile
+     * @param n - int number of points
+     */
+    public void getHeights(float[] x, float[] z, float[] out, int n) {
+        int lastKey = -1;
+        TileHeights th = null;
+        for (int i = 0; i < n; i++) {
+            int tx = (int) x[i] / tileWSize;
+            int tz = (int) z[i] / tileWSize;
+            int tk = tx + tz * stride;
+            if (tk != lastKey) {
+                th = getTileHeights(tk);
+                lastKey = tk;
+            }
+            out[i] = th == null ? Float.NaN
+                    : th.getHeight((x[i] - tx * tileWSize) / tileScale, (z[i] - tz * tileWSize) / tileScale);
+        }
+    }
+
+    /**
+     * Get the interpolated heights of many points at once
+     *
+     * @param xz - FloatBuffer of World x, z pairs from its position to its
+     * limit, the position is not changed
+     * @param out - FloatBuffer to fill from its position, one height per
+     * pair, the position is not changed
+     */
+    public void getHeights(FloatBuffer xz, FloatBuffer out) {
+        int lastKey = -1;
+        TileHeights th = null;
+        int in = xz.position();
+        int at = out.position();
+        int n = xz.remaining() / 2;
+        for (int i = 0; i < n; i++) {
+            float x = xz.get(in + i * 2);
+            float z = xz.get(in + i * 2 + 1);
+            int tx = (int) x / tileWSize;
+            int tz = (int) z / tileWSize;
+            int tk = tx + tz * stride;
+            if (tk != lastKey) {
+                th = getTileHeights(tk);
+                lastKey = tk;
+            }
+            out.put(at + i, th == null ? Float.NaN
+                    : th.getHeight((x - tx * tileWSize) / tileScale, (z - tz * tileWSize) / tileScale));
+        }
+    }
+
+    /**
+     * Get the normals of many points at once
+     *
+     * @param x - float array of World X coordinates
+     * @param z - float array of World Z coordinates
+     * @param out - float array to fill with x, y, z of each normal, 0, 0, 0
+     * where there is no tile
+     * @param n - int number of points
+     */
+    public void getNormals(float[] x, float[] z, float[] out, int n) {
+        int lastKey = -1;
+        TileHeights th = null;
+        for (int i = 0; i < n; i++) {
+            int tx = (int) x[i] / tileWSize;
+            int tz = (int) z[i] / tileWSize;
+            int tk = tx + tz * stride;
+            if (tk != lastKey) {
+                th = getTileHeights(tk);
+                lastKey = tk;
+            }
+            if (th == null || !th.getNormal((x[i] - tx * tileWSize) / tileScale,
+                    (z[i] - tz * tileWSize) / tileScale, tileScale, out, i * 3)) {
+                out[i * 3] = 0;
+                out[i * 3 + 1] = 0;
+                out[i * 3 + 2] = 0;
+            }
+        }
+    }
+
+    /**
+     * Get the normals of many points at once
+     *
+     * @param xz - FloatBuffer of World x, z pairs from its position to its
+     * limit, the position is not changed
+     * @param out - FloatBuffer to fill from its position with x, y, z of
+     * each normal, the position is not changed
+     */
+    public void getNormals(FloatBuffer xz, FloatBuffer out) {
+        int lastKey = -1;
+        TileHeights th = null;
+        int in = xz.position();
+        int at = out.position();
+        int n = xz.remaining() / 2;
+        for (int i = 0; i < n; i++) {
+            float x = xz.get(in + i * 2);
+            float z = xz.get(in + i * 2 + 1);
+            int tx = (int) x / tileWSize;
+            int tz = (int) z / tileWSize;
+            int tk = tx + tz * stride;
+            if (tk != lastKey) {
+                th = getTileHeights(tk);
+                lastKey = tk;
+            }
+            float lx = (x - tx * tileWSize) / tileScale;
+            float lz = (z - tz * tileWSize) / tileScale;
+            if (th == null || !th.getNormal(lx, lz, tileScale, out, at + i * 3)) {
+                out.put(at + i * 3, 0);
+                out.put(at + i * 3 + 1, 0);
+                out.put(at + i * 3 + 2, 0);
+            }
+        }
+    }
+}
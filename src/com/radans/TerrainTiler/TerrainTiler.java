@@ -7,6 +7,9 @@ import com.jme3.app.Application;
 import com.jme3.app.SimpleApplication;
 import com.jme3.app.state.AppState;
 import com.jme3.app.state.AppStateManager;
+import com.jme3.asset.AssetInfo;
+import com.jme3.asset.AssetKey;
+import com.jme3.asset.AssetNotFoundException;
 import com.jme3.asset.DesktopAssetManager;
 import com.jme3.asset.ModelKey;
 import com.jme3.asset.plugins.ClasspathLocator;
@@ -21,26 +24,52 @@ import com.jme3.math.Vector2f;
 import com.jme3.math.Vector3f;
 import com.jme3.renderer.Camera;
 import com.jme3.renderer.RenderManager;
+import com.jme3.scene.Mesh;
 import com.jme3.scene.Node;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.mesh.IndexBuffer;
 import com.jme3.shader.plugins.GLSLLoader;
 import com.jme3.terrain.ProgressMonitor;
 import com.jme3.terrain.Terrain;
+import com.jme3.terrain.geomipmap.LODGeomap;
 import com.jme3.terrain.geomipmap.MultiTerrainLodControl;
 import com.jme3.terrain.geomipmap.NeighbourFinder;
+import com.jme3.terrain.geomipmap.TerrainPatch;
 import com.jme3.terrain.geomipmap.TerrainQuad;
 import com.jme3.terrain.geomipmap.lodcalc.DistanceLodCalculator;
 import com.jme3.texture.plugins.AWTLoader;
-import java.io.BufferedReader;
+import com.radans.TerrainTiler.TileRegistry.TileState;
+import com.radans.TerrainTiler.TileRegistry.Tile;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * TerrainTiler class for managing very large terrains over an array of tiles
@@ -52,18 +81,60 @@ import java.util.logging.Logger;
 public class TerrainTiler extends Node implements Terrain, NeighbourFinder {
     private static float version = 2013.1118f;
     private static int maxTiles = 4096;
+    private static final int TILE_VERTEX_BYTES = 44;  // rough heap and buffer bytes per tile vertex
     protected static final Logger tLog = Logger.getLogger(TerrainTiler.class.getCanonicalName());
     private final DesktopAssetManager dAssetManager;
     private volatile MultiTerrainLodControl terrainMLOD;
     private volatile boolean terrainLocked;         // disable editing if true
     private volatile boolean useJars;               // true if tiles packed into jars
     private volatile TerrainState terrainState;     // appState for updates
-    private ConcurrentHashMap<Integer, TerrainQuad> tileSet;  // Array of tiles
-    private ConcurrentHashMap<Integer, Integer> tileFlag;  // Array of tiles
+    private final TileRegistry tileRegistry = new TileRegistry(maxTiles, 128);  // every tile tracked, by key
+    private final TilerMetrics metrics = new TilerMetrics(tileRegistry);
+    private ObjectName mbeanName;                   // set while the metrics are registered
+    private final AtomicReference<TerrainSnapshot> snapshot = new AtomicReference<>(
+            new TerrainSnapshot(0, new Tile[0], 0, maxTiles, 1, 1));  // attached tiles for queries
+    private long snapshotVersion;                   // version of the last published snapshot
+    private Tile[] snapTiles = new Tile[128];       // reused when publishing snapshots
+    private final TileCache tileCache = new TileCache(128L * 1024 * 1024);  // recently detached tiles
     private volatile terrainThread tThread;         // Thread for tile updates
+    private volatile ThreadPoolExecutor loaderPool; // worker pool loading tiles in parallel
+    private ThreadPoolExecutor editorPool;          // applies height edits in parallel, null until used
+    private volatile int loaderThreads;             // number of loader worker threads
     private volatile boolean threadState;           // State of thread (running or not)
+    private final Object schedLock = new Object();  // tiler thread waits on this for camera changes
+    private volatile long pollInterval;             // max time in ms the tiler thread sleeps
+    private volatile float updateBudget;            // ms per frame for attaching and removing tiles
+    private volatile int camCellX;                  // tile cell the camera is in
+    private volatile int camCellZ;                  // tile cell the camera is in
+    private volatile float camX;                    // camera world location for load priority
+    private volatile float camY;                    // and for the first LOD of loaded tiles
+    private volatile float camZ;
+    private volatile float camDirX;                 // camera heading for load priority
+    private volatile float camDirZ;
+    private volatile float viewWeight;              // how much the heading biases load order
+    private volatile float camVelX;                 // smoothed camera velocity for prefetching
+    private volatile float camVelZ;
+    private volatile float prefetchTime;            // seconds of travel to look ahead
+    private volatile float prefetchDistance;        // max world distance to look ahead, 0 = off
+    private volatile long prefetchBudget;           // max bytes of tiles held by prefetching
+    private volatile long memoryBudget;             // max bytes of all tiles held, 0 = no limit
+    private volatile long largestTile;              // most bytes a loaded tile has taken
+    private volatile int prefetchCellX;             // cell the camera is predicted to reach
+    private volatile int prefetchCellZ;
     private volatile boolean newTile;               // flag to alert to tile changes
     private volatile Camera camera;                 // Referance to camera to track movement for updates
+    private final boolean headless;                 // true if heights only, no scene or camera
+    private final CopyOnWriteArrayList<TileObserver> observers = new CopyOnWriteArrayList<>();  // interest points
+    private final ConcurrentLinkedQueue<TileObserver> droppedObservers = new ConcurrentLinkedQueue<>();  // removed, still counted
+    private volatile TileObserver camObserver;      // observer following the main camera
+    private volatile boolean lodCamerasChanged;     // camera observers added or removed
+    private volatile boolean rescan;                // tiler thread should scan again without waiting
+    private volatile boolean lostTile;              // a wanted tile failed to load, check them all
+    private volatile TileHeights oobHeights;        // flat heights shared by all missing tiles
+    private volatile float[] oobHeightMap;          // all zero, never written
+    private volatile Material oobMaterial;          // wireframe material shared by all missing tiles
+    private final ConcurrentLinkedQueue<TerrainQuad> oobSpares = new ConcurrentLinkedQueue<>();  // detached placeholders
+    private final TileRefs missingTiles = new TileRefs();  // keys of tiles known to have no file
     private volatile int numTilesX;                 // number of tiles in the X direction
     private volatile int numTilesZ;                 // number of tiles in the Z direction
     private volatile int tileSize;                  // size of each tile - power of 2
@@ -71,8 +142,19 @@ public class TerrainTiler extends Node implements Terrain, NeighbourFinder {
     private volatile int tileWSize;                 // world size (scaled) of each tile
     private volatile String tileLocator;            // Locator for asset loader to find tiles
     private volatile String terrainMapFile;         // location and name of map file
+    private volatile String tileType;               // tile file type from the map file
+    private volatile RawTileFile rawTiles;          // flat height file if tileType is raw
+    private volatile TilePack tilePack;             // packed tile file if tileType is pack
+    private volatile TileIndex tileIndex;           // which raw or j3o tiles exist, if the map has one
+    private volatile TileOverview tileOverview;     // coarse heights of the whole map, if it has them
+    private volatile FarField farField;             // coarse terrain past the grid, null until used
+    private volatile J3oHeights j3oReader;          // reads j3o tile heights, null until used
+    private volatile boolean closed;                // true once close has let everything go
+    private volatile Material tileMaterial;         // material for tiles built from heights
+    private final Object initLock = new Object();   // creates shared objects on first use, off the tiler monitor
     private volatile SimpleApplication app;         // app calling hooks
-    private volatile int gridSize;                  // number of tiles viewable (3, 5, 7, 9);
+    private volatile int gridSize;                  // number of tiles viewable across the window
+    private volatile GridWindow gridWindow = GridWindow.square(1);  // tiles kept around observers
     private volatile int gridCenterX;               // center of viewable grid
     private volatile int gridCenterZ;               // center of viewable grid
     private Set<TerrainTilerAction> actionHooks = new HashSet<>();
@@ -86,22 +168,64 @@ public class TerrainTiler extends Node implements Terrain, NeighbourFinder {
      * @param cam - Camera to track movement for tile load/unload.
      * @param tLocator - Full pathname for the <tiledTerrain>.map file to load.
      *      This file containes all the details on the map tiles, size etc
-     *      Should be absolute path and filename for loading.
-     *      line 1: tiledTerrain : <version>          // eg "tiledTerrain : 19
-     *      line 2: useJars   : <true|false>          // are tiles packed into jars
-     *      line 3: numTilesX : <16...4096>           // number tiles in X direction
-     *      line 4: numTilesZ : <16...4096>           // number tiles in Z direction
-     *      line 5: tileSize  : <256...2048>          // base size of each tile
-     *      line 6: tileScale : <scale>               // scale factors for each tile
-     *      line 7: tileType  : <image|terrain|node>  // tile file type
+     *      Should be absolute path and filename for loading. Settings may
+     *      come in any order after the first line, see MapDescriptor.
+     *      tiledTerrain : <version>          // eg "tiledTerrain : 19
+     *      useJars   : <true|false>          // are tiles packed into jars
+     *      numTilesX : <16...4096>           // number tiles in X direction
+     *      numTilesZ : <16...4096>           // number tiles in Z direction
+     *      tileSize  : <256...2048>          // base size of each tile
+     *      tileScale : <scale>               // scale factors for each tile
+     *      tileType  : <terrain|raw|raw16|pack>  // tile file type
+     *      tileFile  : <filename>            // optional, raw or pack file
+     *      tileIndex : <filename>            // optional, see TileIndex
+     *      tileOverview : <filename>         // optional, see TileOverview
+     *          raw tiles are all held in one memory mapped file of little
+     *          endian floats (raw) or half floats (raw16), default name is
+     *          tiledTerrain.raw next to the map file. See RawTileFile.
+     *          pack tiles are all held in one indexed and compressed file,
+     *          default name is tiledTerrain.pack. See TilePack.
+     *          With a raw file, pack or tile index the tiler knows which
+     *          tiles exist and their size without loading any, otherwise the
+     *          origin tile is loaded to check the size.
      * @param caller - SimpleApplication calling us to attach appState to
      */
     public TerrainTiler(Camera cam, String tLocator, SimpleApplication caller) {
+        this(cam, tLocator, caller, false);
+    }
+
+    /**
+     * Constructor for a headless TerrainTiler for servers, with no camera,
+     * application or rendering. Only tile heights are loaded, there are no
+     * TerrainQuads, materials or LOD, and nothing is attached to the scene.
+     *
+     * Tiles are kept loaded in a grid around each TileObserver added, so one
+     * tiler can hold the terrain around every connected player. Height and
+     * normal queries work as normal, from any thread. Call update from the
+     * server loop to bring loaded tiles into use, and close when done as
+     * there is no app to clean the tiler up.
+     *
+     * @param tLocator - Full pathname for the <tiledTerrain>.map file to load.
+     */
+    public TerrainTiler(String tLocator) {
+        this(null, tLocator, null, true);
+    }
+
+    /**
+     * Map file constructor, with or without a scene to attach tiles to
+     */
+    private TerrainTiler(Camera cam, String tLocator, SimpleApplication caller, boolean noScene) {
         this.setName("TiledTerrainNode");
+        this.headless = noScene;
         this.camera = cam;
         this.app = caller;
         this.terrainLocked = true;      // by default lock out editing
         this.gridSize = 3;              // default to 3x3 grid
+        this.loaderThreads = defaultLoaderThreads();
+        this.pollInterval = 250;
+        this.updateBudget = 2f;
+        this.prefetchTime = 2f;
+        this.prefetchBudget = 64L * 1024 * 1024;
         this.terrainMapFile = tLocator;
         this.valid = false;
         
@@ -116,42 +240,46 @@ public class TerrainTiler extends Node implements Terrain, NeighbourFinder {
         dAssetManager.registerLoader(BitmapFontLoader.class, "fnt");
         dAssetManager.registerLoader(AWTLoader.class, "png");
         
-        // todo
-        /** load in <tiledTerrain>.map file and parse parameters....*/
+        // load in <tiledTerrain>.map file and check it before using any of it
         File file = new File(tLocator);
         if (file.exists()) {
             try {
                 tileLocator = file.getParentFile().getCanonicalPath();
-                FileReader fRead = new FileReader(file);
-                BufferedReader bRead = new BufferedReader(fRead);
-                String rLine = bRead.readLine();
-                if (rLine.startsWith("tiledTerrain")) {
-                    mapVersion = Integer.valueOf(rLine.substring(15));
-                    rLine = bRead.readLine();
-                    useJars = Boolean.valueOf(rLine.substring(12));
-                    rLine = bRead.readLine();
-                    numTilesX = Integer.valueOf(rLine.substring(12));
-                    rLine = bRead.readLine();
-                    numTilesZ = Integer.valueOf(rLine.substring(12));
-                    rLine = bRead.readLine();
-                    tileSize = Integer.valueOf(rLine.substring(12));
-                    rLine = bRead.readLine();
-                    tileScale = Integer.valueOf(rLine.substring(12));
-                    rLine = bRead.readLine();
-                    if (rLine.substring(12).startsWith("terrain")) {
-                        this.valid = true;
-                        if (numTilesX < 16 | numTilesX > 4096 | numTilesZ < 16 | numTilesZ > 4096) {
-                            this.valid = false;
-                        }
-                        if (tileSize != 256 & tileSize != 512 & tileSize != 1024 & tileSize != 2048) {
-                            this.valid = false;
-                        }
-                        if (tileScale == 0) {
-                            this.valid = false;
-                        }
-                    }
-                    bRead.close();
-                    fRead.close();
+                MapDescriptor map = MapDescriptor.read(file);
+                mapVersion = map.version;
+                useJars = map.useJars;
+                numTilesX = map.numTilesX;
+                numTilesZ = map.numTilesZ;
+                tileSize = map.tileSize;
+                tileScale = map.tileScale;
+                tileType = map.tileType;
+                if (map.isRaw()) {
+                    rawTiles = new RawTileFile(new File(tileLocator, map.getTileFile()),
+                            numTilesX, numTilesZ, tileSize, tileType.equals("raw16"));
+                } else if (map.isPack()) {
+                    tilePack = new TilePack(new File(tileLocator, map.getTileFile()));
+                }
+                if (map.tileIndex != null) {
+                    tileIndex = new TileIndex(new File(tileLocator, map.tileIndex));
+                }
+                if (map.tileOverview != null) {
+                    tileOverview = new TileOverview(new File(tileLocator, map.tileOverview));
+                }
+                this.valid = true;
+                if (tilePack != null && (tilePack.getNumTilesX() != numTilesX
+                        | tilePack.getNumTilesZ() != numTilesZ | tilePack.getTileSize() != tileSize)) {
+                    tLog.log(Level.SEVERE, "TerrainTiler: Tile pack does not match mapfile!");
+                    this.valid = false;
+                }
+                if (tileIndex != null && (tileIndex.getNumTilesX() != numTilesX
+                        | tileIndex.getNumTilesZ() != numTilesZ | tileIndex.getTileSize() != tileSize)) {
+                    tLog.log(Level.SEVERE, "TerrainTiler: Tile index does not match mapfile!");
+                    this.valid = false;
+                }
+                if (tileOverview != null && (tileOverview.getNumTilesX() != numTilesX
+                        | tileOverview.getNumTilesZ() != numTilesZ | tileSize % tileOverview.getSamplesPerTile() != 0)) {
+                    tLog.log(Level.SEVERE, "TerrainTiler: Tile overview does not match mapfile!");
+                    this.valid = false;
                 }
             } catch (IOException ex) {
                 Logger.getLogger(TerrainTiler.class.getName()).log(Level.SEVERE, "Error loading tiledTerrain.map {0}", ex);
@@ -162,7 +290,9 @@ public class TerrainTiler extends Node implements Terrain, NeighbourFinder {
             return;
         }
         // we have a valid mapfile - initialise the tiledterrain
-        if (!this.useJars) {
+        if (rawTiles != null | tilePack != null) {
+            // tiles come straight from the raw or pack file, no locators needed
+        } else if (!this.useJars) {
             dAssetManager.registerLocator(tileLocator, FileLocator.class);
         } else {
             for (int z = 0; z < (numTilesZ / 64) + 1; z++) {
@@ -173,20 +303,37 @@ public class TerrainTiler extends Node implements Terrain, NeighbourFinder {
                 }
             }
         }
-        // Check tile size by loading the origin one.
-        TerrainQuad tq = LoadTile(0, 0);
-        if (tq.getName().startsWith("OOB")) {
-            tLog.log(Level.SEVERE, "TerrainTiler: Origin Tile Not Found! Aborting...");
-            this.valid = false;
-            return;
-        }
-        if (this.tileSize != (tq.getTerrainSize() - 1)) {
-            tLog.log(Level.SEVERE, "TerrainTiler: Origin Tile size does not match mapfile! Aborting...");
-            this.valid = false;
-            return;
+        // Raw files, packs and tile indexes record the tile size, other maps
+        // are checked by loading the origin tile.
+        if (rawTiles == null & tilePack == null & tileIndex == null) {
+            TileHeights origin;
+            try {
+                origin = loadHeights(0, 0);
+            } catch (IOException ex) {
+                tLog.log(Level.SEVERE, "TerrainTiler: Error loading origin tile {0}", ex.getMessage());
+                origin = null;
+            }
+            if (origin == null) {
+                tLog.log(Level.SEVERE, "TerrainTiler: Origin Tile Not Found! Aborting...");
+                this.valid = false;
+                return;
+            }
+            if (this.tileSize != (origin.getSize() - 1)) {
+                tLog.log(Level.SEVERE, "TerrainTiler: Origin Tile size does not match mapfile! Aborting...");
+                this.valid = false;
+                return;
+            }
         }
         this.tileWSize = tileSize * tileScale;
         int pSize = tileSize / 4;
+        addCameraObserver();
+
+        if (headless) {
+            // no scene so the state is driven by update() instead of an app
+            terrainState = new TerrainState();
+            terrainState.initialize(null, null);
+            return;
+        }
 
         // setup LOD system
         terrainMLOD = new MultiTerrainLodControl(camera);
@@ -215,6 +362,7 @@ public class TerrainTiler extends Node implements Terrain, NeighbourFinder {
     public TerrainTiler(Camera cam, int nTiles, boolean uJars, int tScale, String tLocator, SimpleApplication caller) {
         // Fill the local variables 
         this.setName("TerrainTilerNode");
+        this.headless = false;
         this.camera = cam;
         this.numTilesX = nTiles;
         this.numTilesZ = nTiles;
@@ -224,6 +372,11 @@ public class TerrainTiler extends Node implements Terrain, NeighbourFinder {
         this.valid = false;
         this.app = caller;
         this.gridSize = 3;              // default to 3x3 grid
+        this.loaderThreads = defaultLoaderThreads();
+        this.pollInterval = 250;
+        this.updateBudget = 2f;
+        this.prefetchTime = 2f;
+        this.prefetchBudget = 64L * 1024 * 1024;
         this.terrainLocked = useJars;
         this.tileSize = 128;
 
@@ -252,13 +405,14 @@ public class TerrainTiler extends Node implements Terrain, NeighbourFinder {
 
         // Check tile size by loading the origin one.
         TerrainQuad tq = LoadTile(0, 0);
-        if (tq.getName().startsWith("OOB")) {
+        if (tq == null || tq.getName().startsWith("OOB")) {
             tLog.log(Level.SEVERE, "TerrainTiler: Origin Tile Not Found! Aborting...");
             return;
         }
         this.tileSize = tq.getTerrainSize() - 1;
         this.tileWSize = tileSize * tileScale;
         int pSize = tileSize / 4;
+        addCameraObserver();
 
         // setup LOD system
         terrainMLOD = new MultiTerrainLodControl(camera);
@@ -277,261 +431,1505 @@ public class TerrainTiler extends Node implements Terrain, NeighbourFinder {
      *
      * @param tileX - Tile X location in grid
      * @param tileZ - Tile Z location in grid
-     * @return TerrainQuad of loaded tile or null if OOB or no file found
+     * Called from the loader pool so several tiles can load at once, the
+     * asset manager is thread safe so no locking is needed here.
+     *
+     * @return TerrainQuad of loaded tile, a placeholder if there is no file,
+     * or null if the tile failed to load
      */
-    private synchronized TerrainQuad LoadTile(int tileX, int tileZ) {
+    private TerrainQuad LoadTile(int tileX, int tileZ) {
+        if (isMissing(tileX, tileZ)) {
+            return oobTile(tileX, tileZ);     // probed before, don't go back to disk
+        }
         try {
+            if (rawTiles != null) {
+                float[] hMap = rawTiles.readTile(tileX, tileZ);
+                metrics.bytesRead(rawTiles.getTileBytes());
+                return buildTile(tileX, tileZ, hMap);
+            } else if (tilePack != null) {
+                return LoadPackTile(tileX, tileZ);
+            }
             String tileName = String.format("TILE-%02d%02d.j3o", (tileX % 64), (tileZ % 64));
             String dirName = String.format("DIR-%02d%02d/", (tileX / 64), (tileZ / 64));
-            tLog.log(Level.FINE, "Loading Tile: {0}{1}", new Object[]{dirName, tileName});
+            tLog.log(Level.FINER, "Loading Tile: {0}{1}", new Object[]{dirName, tileName});
 
             ModelKey mk = new ModelKey(dirName + tileName);
             TerrainQuad tq = (TerrainQuad) dAssetManager.loadModel(mk);
-            
-            tq.setLocalScale(tileScale, 1f, tileScale);
-            float ts = tileSize * tileScale;
-            float to = ts / 2;
-            tq.setLocalTranslation(new Vector3f(tileX * ts + to, 0f, tileZ * ts + to));
-
-            // this is needed as tiles come with separate materials for each
-            // patch so this makes the tile have one for all patches.
-            tq.setMaterial(tq.getMaterial());
-
-            // Debug LOD with wireframe: (if I dont do above only one patch will be wireframe!!)
-            //tq.getMaterial().getAdditionalRenderState().setWireframe(true);
+            placeTile(tq, tileX, tileZ);
+            if (!useJars) {
+                metrics.bytesRead(new File(tileLocator, dirName + tileName).length());
+            }
 
-            tLog.log(Level.FINE, "Tile Loaded");
+            tLog.log(Level.FINER, "Tile Loaded");
             dAssetManager.deleteFromCache(mk);
             return tq;
+        } catch (AssetNotFoundException ex) {
+            tLog.log(Level.FINE, "No tile file, using placeholder: {0}", ex.getMessage());
+            markMissing(tileX, tileZ);
+            return oobTile(tileX, tileZ);
         } catch (Exception ex) {
             tLog.log(Level.WARNING, "Error loading tile!{0}", ex.getMessage());
-            float[] hMap = new float[(tileSize + 1) * (tileSize + 1)];
-            int pSize = tileSize / 4;
-            if (tileSize <= 64) {
-                pSize = tileSize;
-            } else if (tileSize == 128) {
-                pSize = 64;
-            }
-            String tileName = String.format("OOB%02d%02d%02d%02d",
-                    (tileX / 64), (tileX % 64), (tileZ / 64), (tileZ % 64));
-            TerrainQuad oobQuad = new TerrainQuad(tileName, pSize + 1, tileSize + 1, hMap);
-            oobQuad.setLocalScale(tileScale);
-            float ts = tileSize * tileScale;
-            float to = ts / 2;
-            oobQuad.setLocalTranslation(new Vector3f(tileX * ts + to, 0f, tileZ * ts + to));
-            oobQuad.setNeighbourFinder(this);
-            Material mat = new Material(dAssetManager, "Common/MatDefs/Misc/Unshaded.j3md");
-            mat.setColor("Color", ColorRGBA.Green);
-            mat.getAdditionalRenderState().setWireframe(true);
-            oobQuad.setMaterial(mat);
-            return oobQuad;
+            return null;
         }
     }
     
     /**
-     * return the library version
+     * Positions and scales a tile loaded from a j3o and gives all its patches
+     * the one material.
+     *
+     * @param tq - TerrainQuad as loaded
+     * @param tileX - Tile X location in grid
+     * @param tileZ - Tile Z location in grid
      */
-    public double getVersion() {
-        return version;
+    private void placeTile(TerrainQuad tq, int tileX, int tileZ) {
+        tq.setLocalScale(tileScale, 1f, tileScale);
+        float ts = tileSize * tileScale;
+        float to = ts / 2;
+        tq.setLocalTranslation(new Vector3f(tileX * ts + to, 0f, tileZ * ts + to));
+
+        // this is needed as tiles come with separate materials for each
+        // patch so this makes the tile have one for all patches.
+        // Baked tiles are saved without one so use the shared tile material.
+        Material mat = tq.getMaterial();
+        tq.setMaterial(mat != null ? mat : getTileMaterial());
+
+        // Debug LOD with wireframe: (if I dont do above only one patch will be wireframe!!)
+        //tq.getMaterial().getAdditionalRenderState().setWireframe(true);
     }
 
     /**
-     * Set the camera we will track for loading tiles
+     * Loads a tile from the tile pack, either a packed j3o or heights.
      *
-     * @param cam - Camera to track
+     * @param tileX - Tile X location in grid
+     * @param tileZ - Tile Z location in grid
+     * @return TerrainQuad of the tile
+     * @throws IOException if the tile is not in the pack
      */
-    public void setCamera(Camera cam) {
-        this.camera = cam;
+    private TerrainQuad LoadPackTile(int tileX, int tileZ) throws IOException {
+        if (!tilePack.hasTile(tileX, tileZ)) {
+            throw new AssetNotFoundException("Tile not in pack: " + tileX + "," + tileZ);
+        }
+        metrics.bytesRead(tilePack.getStoredBytes(tileX, tileZ));
+        if (tilePack.getPayload() != TilePack.PAYLOAD_J3O) {
+            return buildTile(tileX, tileZ, tilePack.readHeights(tileX, tileZ));
+        }
+        BinaryImporter importer = BinaryImporter.getInstance();
+        importer.setAssetManager(dAssetManager);
+        TerrainQuad tq = (TerrainQuad) importer.load(tilePack.readTile(tileX, tileZ));
+        placeTile(tq, tileX, tileZ);
+        return tq;
     }
 
     /**
-     * Gets the currently set root directory for finding the Tiles
+     * Builds a tile straight from heights read from a raw or pack file.
      *
-     * @return String containing the tile root directory
+     * @param tileX - Tile X location in grid
+     * @param tileZ - Tile Z location in grid
+     * @param hMap - float array of (tileSize + 1) squared heights
+     * @return TerrainQuad of the tile
      */
-    public String getTileLocator() {
-        return this.tileLocator;
+    private TerrainQuad buildTile(int tileX, int tileZ, float[] hMap) {
+        String tileName = String.format("TILE-%02d%02d%02d%02d",
+                (tileX / 64), (tileX % 64), (tileZ / 64), (tileZ % 64));
+        TerrainQuad tq = new TerrainQuad(tileName, patchSize() + 1, tileSize + 1, hMap);
+        tq.setLocalScale(tileScale, 1f, tileScale);
+        float ts = tileSize * tileScale;
+        float to = ts / 2;
+        tq.setLocalTranslation(new Vector3f(tileX * ts + to, 0f, tileZ * ts + to));
+        tq.setMaterial(getTileMaterial());
+        return tq;
     }
 
     /**
-     * Sets the root directory in which to find the Tiles. Do not use while
-     * setEnabled(true)!
+     * Loads just the heights of a tile, for headless use and for checking the
+     * map. No TerrainQuad or material is built, j3o tiles are read through
+     * J3oHeights.
      *
-     * @param directory - String with the root directory
+     * @param tileX - Tile X location in grid
+     * @param tileZ - Tile Z location in grid
+     * @return TileHeights of the tile or null if there is no file
+     * @throws IOException if the tile can not be read
      */
-    public void setTileLocator(String directory) {
-        dAssetManager.unregisterLocator(this.tileLocator, FileLocator.class);
-        this.tileLocator = directory;
-        dAssetManager.registerLocator(this.tileLocator, FileLocator.class);
+    private TileHeights loadHeights(int tileX, int tileZ) throws IOException {
+        if (isMissing(tileX, tileZ)) {
+            return null;
+        }
+        if (rawTiles != null) {
+            float[] hMap = rawTiles.readTile(tileX, tileZ);
+            metrics.bytesRead(rawTiles.getTileBytes());
+            return new TileHeights(hMap, tileSize + 1, patchSize());
+        } else if (tilePack != null && tilePack.getPayload() != TilePack.PAYLOAD_J3O) {
+            if (!tilePack.hasTile(tileX, tileZ)) {
+                markMissing(tileX, tileZ);
+                return null;
+            }
+            metrics.bytesRead(tilePack.getStoredBytes(tileX, tileZ));
+            return new TileHeights(tilePack.readHeights(tileX, tileZ), tileSize + 1, patchSize());
+        } else if (tilePack != null) {
+            if (!tilePack.hasTile(tileX, tileZ)) {
+                markMissing(tileX, tileZ);
+                return null;
+            }
+            metrics.bytesRead(tilePack.getStoredBytes(tileX, tileZ));
+            return getJ3oReader().read(tilePack.readTile(tileX, tileZ));
+        }
+        String tilePath = String.format("DIR-%02d%02d/TILE-%02d%02d.j3o",
+                (tileX / 64), (tileZ / 64), (tileX % 64), (tileZ % 64));
+        AssetInfo info = dAssetManager.locateAsset(new AssetKey<>(tilePath));
+        if (info == null) {
+            tLog.log(Level.FINE, "No tile file: {0}", tilePath);
+            markMissing(tileX, tileZ);
+            return null;
+        }
+        TileHeights heights;
+        try (InputStream in = info.openStream()) {
+            heights = getJ3oReader().read(in);
+        }
+        if (!useJars) {
+            metrics.bytesRead(new File(tileLocator, tilePath).length());
+        }
+        return heights;
+    }
+
+    /**
+     * Get the reader of j3o tile heights, created on first use
+     */
+    private J3oHeights getJ3oReader() {
+        J3oHeights reader = j3oReader;
+        if (reader == null) {
+            synchronized (initLock) {
+                reader = j3oReader;
+                if (reader == null) {
+                    reader = new J3oHeights();
+                    j3oReader = reader;
+                }
+            }
+        }
+        return reader;
     }
 
     /**
-     * Sets the size of the viewable grid Must be 3 or 5 or 7 or 9!
+     * Check if a tile is known to have no file
      *
-     * @param size - int of size
+     * @param tileX - Tile X location
+     * @param tileZ - Tile Z location
+     * @return true if an earlier load found nothing there
      */
-    public void setGridSize(int size) {
-        if (size == 3 | size == 5 | size == 7 | size == 9) {
-            this.gridSize = size;
+    private boolean isMissing(int tileX, int tileZ) {
+        TileIndex index = tileIndex;
+        if (index != null && !index.hasTile(tileX, tileZ)) {
+            return true;
+        }
+        synchronized (missingTiles) {
+            return missingTiles.get(tileX + (tileZ * maxTiles)) > 0;
         }
     }
 
     /**
-     * Get the current size of the viewable grid
+     * Remember a tile has no file so it is never looked for again
      *
-     * @return int of gridSize
+     * @param tileX - Tile X location
+     * @param tileZ - Tile Z location
      */
-    public int getGridSize() {
-        return gridSize;
+    private void markMissing(int tileX, int tileZ) {
+        int tk = tileX + (tileZ * maxTiles);
+        synchronized (missingTiles) {
+            if (missingTiles.get(tk) == 0) {
+                missingTiles.add(tk, 1);
+            }
+        }
     }
 
     /**
-     * Set the max number of terrain tiles to use in the X direction <16...4096>
-     * Do not set to less than current location or player will be plunged 
-     * into the void!
-     * 
-     * @param number
+     * Get a flat placeholder for a missing tile. A spare one detached
+     * earlier is moved into place if there is one, otherwise a new one is
+     * built from the shared flat heights and material.
+     *
+     * @param tileX - Tile X location
+     * @param tileZ - Tile Z location
+     * @return TerrainQuad named OOB and the tile location
      */
-    public void setNumTilesX(int number) {
-        if (number > 4 & (number & (number - 1)) == 0) {
-            this.numTilesX = number;
+    private TerrainQuad oobTile(int tileX, int tileZ) {
+        String tileName = String.format("OOB%02d%02d%02d%02d",
+                (tileX / 64), (tileX % 64), (tileZ / 64), (tileZ % 64));
+        TerrainQuad oobQuad = oobSpares.poll();
+        if (oobQuad != null) {
+            oobQuad.setName(tileName);
+        } else {
+            oobQuad = new TerrainQuad(tileName, patchSize() + 1, tileSize + 1, flatHeightMap());
+            oobQuad.setLocalScale(tileScale);
+            oobQuad.setMaterial(getOobMaterial());
         }
+        float ts = tileSize * tileScale;
+        float to = ts / 2;
+        oobQuad.setLocalTranslation(new Vector3f(tileX * ts + to, 0f, tileZ * ts + to));
+        oobQuad.setNeighbourFinder(this);
+        return oobQuad;
     }
 
     /**
-     * Get the current max number of tiles in the X direction
+     * Get the material placeholder tiles share, creating it on first use
+     */
+    private Material getOobMaterial() {
+        Material mat = oobMaterial;
+        if (mat == null) {
+            synchronized (initLock) {
+                mat = oobMaterial;
+                if (mat == null) {
+                    mat = new Material(dAssetManager, "Common/MatDefs/Misc/Unshaded.j3md");
+                    mat.setColor("Color", ColorRGBA.Green);
+                    mat.getAdditionalRenderState().setWireframe(true);
+                    oobMaterial = mat;
+                }
+            }
+        }
+        return mat;
+    }
+
+    /**
+     * Flat heightmap to build placeholders from, TerrainQuad copies out of it
+     * so one array serves them all
+     */
+    private float[] flatHeightMap() {
+        float[] hMap = oobHeightMap;
+        if (hMap == null) {
+            hMap = new float[(tileSize + 1) * (tileSize + 1)];
+            oobHeightMap = hMap;
+        }
+        return hMap;
+    }
+
+    /**
+     * Flat heights standing in for missing tiles, shared by all of them as
+     * they never change
+     */
+    private TileHeights flatHeights() {
+        if (oobHeights == null) {
+            oobHeights = new TileHeights(flatHeightMap(), tileSize + 1, patchSize());
+        }
+        return oobHeights;
+    }
+
+    /**
+     * Give a loaded tile the LOD it will get once attached, while still on
+     * the loader thread. The LOD control would otherwise start every new tile
+     * at full detail and index it again a frame or two later, so the render
+     * thread uploads the full index buffers only to throw them away. Levels
+     * are worked out as the DistanceLodCalculator does from where the camera
+     * is now, and the edges of each patch are stitched to the level its
+     * neighbours will get, across tile edges too. The world bounds are
+     * brought up to date here as well. If the camera moves on before the
+     * tile is attached the LOD control corrects the levels in its own thread
+     * as it does for attached tiles.
      *
-     * @return int number of tiles
+     * @param tq - TerrainQuad just loaded, not yet attached
      */
-    public int getNumTilesX() {
-        return numTilesX;
+    private void prepareLod(TerrainQuad tq) {
+        MultiTerrainLodControl lod = terrainMLOD;
+        if (camera == null || lod == null || !(lod.getLodCalculator() instanceof DistanceLodCalculator)) {
+            return;
+        }
+        DistanceLodCalculator calc = (DistanceLodCalculator) lod.getLodCalculator();
+        float threshold = calc.getSize() * calc.getLodMultiplier();
+        tq.updateGeometricState();      // patch locations and world bounds
+        List<TerrainPatch> patches = new ArrayList<>();
+        tq.getAllTerrainPatches(patches);
+        for (TerrainPatch patch : patches) {
+            Vector3f loc = patch.getWorldTranslation();
+            float scale = patch.getWorldScale().x;
+            float half = patch.getSize() * scale / 2;
+            float step = (patch.getSize() - 1) * scale;     // to the next patch center
+            float cx = loc.x + half;
+            float cz = loc.z + half;
+            int max = patch.getMaxLod();
+            int level = lodLevel(cx, loc.y, cz, threshold * scale, max);
+            if (level == 0 & patch.getLod() == 0) {
+                continue;   // full detail as built
+            }
+            int right = lodLevel(cx + step, loc.y, cz, threshold * scale, max);
+            int top = lodLevel(cx, loc.y, cz - step, threshold * scale, max);
+            int left = lodLevel(cx - step, loc.y, cz, threshold * scale, max);
+            int bottom = lodLevel(cx, loc.y, cz + step, threshold * scale, max);
+            LODGeomap geomap = new LODGeomap(patch.getSize(), patch.getHeightMap());
+            IndexBuffer idx = geomap.writeIndexArrayLodDiff(1 << level,
+                    right > level, top > level, left > level, bottom > level, patch.getTotalSize());
+            Mesh mesh = patch.getMesh();
+            mesh.clearBuffer(VertexBuffer.Type.Index);
+            if (idx.getBuffer() instanceof IntBuffer) {
+                mesh.setBuffer(VertexBuffer.Type.Index, 3, (IntBuffer) idx.getBuffer());
+            } else {
+                mesh.setBuffer(VertexBuffer.Type.Index, 3, (ShortBuffer) idx.getBuffer());
+            }
+            patch.setLod(level);
+        }
     }
 
     /**
-     * Set the max number of terrain tiles to use in the Z direction <16...4096>
-     * Do not set to less than current location or player will be plunged 
-     * into the void!
-     * 
-     * @param number
+     * LOD level of a patch centered at a point, as the DistanceLodCalculator
+     * picks it
      */
-    public void setNumTilesZ(int number) {
-        if (number > 4 & (number & (number - 1)) == 0) {
-            this.numTilesZ = number;
+    private int lodLevel(float x, float y, float z, float threshold, int maxLod) {
+        float dx = x - camX;
+        float dy = y - camY;
+        float dz = z - camZ;
+        float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+        return Math.min((int) (distance / threshold), maxLod);
+    }
+
+    /**
+     * Patch size to split tiles built from heights into
+     */
+    private int patchSize() {
+        if (tileSize <= 64) {
+            return tileSize;
+        } else if (tileSize == 128) {
+            return 64;
         }
+        return tileSize / 4;
     }
 
     /**
-     * Get the current max number of tiles in the Z direction
+     * Number of loader threads to use if none are set, leaves one core free
+     * for the render thread.
+     */
+    private static int defaultLoaderThreads() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    }
+
+    /**
+     * Start the worker pool used to load tiles in parallel
+     */
+    private void startLoaders() {
+        final AtomicInteger count = new AtomicInteger();
+        loaderPool = new ThreadPoolExecutor(loaderThreads, loaderThreads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Terrain Tiler Loader-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        loaderPool.prestartAllCoreThreads();
+    }
+
+    /**
+     * Stop the loader pool and cancel any tile loads still pending. Loads
+     * already running are not interrupted, they finish and are dropped as
+     * the tiler is no longer running.
+     */
+    private void stopLoaders() {
+        for (Tile t : tileRegistry.toArray()) {
+            if (t.getState() == TileState.QUEUED) {
+                t.load.cancel(false);
+            }
+        }
+        if (loaderPool != null) {
+            loaderPool.shutdown();
+            loaderPool = null;
+        }
+    }
+
+    /**
+     * Check if a tile lies within the prefetch grid around the cell the camera
+     * is heading for. Callers check the tile is not already wanted.
      *
-     * @return int number of tiles
+     * @param tileX - Tile X location
+     * @param tileZ - Tile Z location
+     * @return true if the tile should be loaded ahead of time
      */
-    public int getNumTilesZ() {
-        return numTilesZ;
+    private boolean inPrefetch(int tileX, int tileZ) {
+        TileObserver cam = camObserver;
+        if (prefetchDistance <= 0 | cam == null) {
+            return false;
+        }
+        return gridWindow.contains(tileX - prefetchCellX, tileZ - prefetchCellZ, cam.sector);
     }
 
     /**
-     * Get the current tile size (unscaled)
+     * Most tiles that may be held by prefetching within the prefetch budget
+     */
+    private int maxPrefetchTiles() {
+        long tileBytes = (long) (tileSize + 1) * (tileSize + 1) * TILE_VERTEX_BYTES;
+        return (int) Math.min(Integer.MAX_VALUE, prefetchBudget / tileBytes);
+    }
+
+    /**
+     * Update the smoothed camera velocity and the cell the camera is predicted
+     * to reach, waking the tiler thread if that cell changes. Must be called
+     * before trackCamera as it uses the last recorded location.
      *
-     * @return - int of size
+     * @param tpf - float time since last frame
      */
-    public int getTileSize() {
-        return tileSize;
+    private void trackVelocity(float tpf) {
+        if (tpf <= 0) {
+            return;
+        }
+        Vector3f loc = camera.getLocation();
+        float blend = Math.min(1f, tpf * 4f);   // smooth over about a quarter second
+        camVelX += ((loc.x - camX) / tpf - camVelX) * blend;
+        camVelZ += ((loc.z - camZ) / tpf - camVelZ) * blend;
+        float px = loc.x;
+        float pz = loc.z;
+        if (prefetchDistance > 0) {
+            float speed = (float) Math.sqrt(camVelX * camVelX + camVelZ * camVelZ);
+            float ahead = Math.min(speed * prefetchTime, prefetchDistance);
+            if (speed > 0) {
+                px += camVelX / speed * ahead;
+                pz += camVelZ / speed * ahead;
+            }
+        }
+        int cx = (int) px / tileWSize;
+        int cz = (int) pz / tileWSize;
+        if (cx != prefetchCellX | cz != prefetchCellZ) {
+            prefetchCellX = cx;
+            prefetchCellZ = cz;
+            wakeScheduler();
+        }
     }
 
     /**
-     * Sets the scale to apply to each tile Do not use while setEnabled(true)!
+     * Record the camera location and heading for ordering tile loads
+     */
+    private void trackCamera() {
+        Vector3f loc = camera.getLocation();
+        Vector3f dir = camera.getDirection();
+        camX = loc.x;
+        camY = loc.y;
+        camZ = loc.z;
+        float len = (float) Math.sqrt(dir.x * dir.x + dir.z * dir.z);
+        if (len > 0) {
+            camDirX = dir.x / len;
+            camDirZ = dir.z / len;
+        }
+    }
+
+    /**
+     * Load priority of a tile, lower loads first. This is the squared distance
+     * from the camera to the tile center, scaled up for tiles behind the
+     * camera by the view weight, or from the nearest observer if closer.
      *
-     * @param scale - int of scale factor
+     * @param tileX - Tile X location
+     * @param tileZ - Tile Z location
+     * @return float priority
      */
-    public void setTileScale(int scale) {
-        if (scale > 0) {
-            this.tileScale = scale;
-            this.tileWSize = this.tileSize * this.tileScale;
+    private float tilePriority(int tileX, int tileZ) {
+        float best = Float.MAX_VALUE;
+        if (camera != null) {
+            float dx = (tileX + 0.5f) * tileWSize - camX;
+            float dz = (tileZ + 0.5f) * tileWSize - camZ;
+            float dist = dx * dx + dz * dz;
+            if (viewWeight > 0 & dist > 0) {
+                float cos = (dx * camDirX + dz * camDirZ) / (float) Math.sqrt(dist);
+                dist *= 1f + viewWeight * (1f - cos) * 0.5f;
+            }
+            best = dist;
+        }
+        for (TileObserver o : observers) {
+            if (o == camObserver) {
+                continue;       // done above with the view weight
+            }
+            float dx = (tileX + 0.5f) * tileWSize - o.getX();
+            float dz = (tileZ + 0.5f) * tileWSize - o.getZ();
+            best = Math.min(best, dx * dx + dz * dz);
         }
+        return best;
     }
 
     /**
-     * Get the current tile scaling factor
+     * Wake the tiler thread so it rescans the grid straight away
+     */
+    private void wakeScheduler() {
+        synchronized (schedLock) {
+            rescan = true;
+            schedLock.notifyAll();
+        }
+    }
+
+    /**
+     * Stop the tiler thread and wait for it to finish
+     */
+    private void stopScheduler() {
+        threadState = false;
+        wakeScheduler();
+        try {
+            tThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Record which tile cell each observer is in and which way it is heading,
+     * waking the tiler thread if any has moved to a new cell or turned a
+     * directional window to a new sector
+     */
+    private void trackObservers() {
+        boolean moved = false;
+        for (TileObserver o : observers) {
+            int sector = o.sector;
+            if (o.camera != null) {
+                o.setLocation(o.camera.getLocation());
+                Vector3f dir = o.camera.getDirection();
+                if (dir.x != 0 | dir.z != 0) {
+                    sector = GridWindow.sector(dir.x, dir.z);
+                }
+            } else {
+                float dx = o.getX() - o.lastX;
+                float dz = o.getZ() - o.lastZ;
+                if (dx * dx + dz * dz > tileWSize * tileWSize / 4f) {
+                    sector = GridWindow.sector(dx, dz);     // heading of travel over half a tile
+                    o.lastX = o.getX();
+                    o.lastZ = o.getZ();
+                }
+            }
+            if (sector != o.sector) {
+                o.sector = sector;
+                GridWindow w = o.getWindow();
+                moved |= (w != null ? w : gridWindow).isDirectional();
+            }
+            int cx = (int) o.getX() / tileWSize;
+            int cz = (int) o.getZ() / tileWSize;
+            if (cx != o.cellX | cz != o.cellZ) {
+                if (o.cellX != Integer.MIN_VALUE & cx >= 0 & cx < numTilesX & cz >= 0 & cz < numTilesZ) {
+                    metrics.cellEntered(snapshot.get().hasTile(cx, cz));
+                }
+                o.cellX = cx;
+                o.cellZ = cz;
+                moved = true;
+            }
+        }
+        if (moved) {
+            wakeScheduler();
+        }
+    }
+
+    /**
+     * Add an interest point to keep tiles loaded around
      *
-     * @return - int of scale
+     * @param x - float World X coordinate
+     * @param z - float World Z coordinate
+     * @return TileObserver to move or remove later
      */
-    public int getTileScale() {
-        return tileScale;
+    public TileObserver addObserver(float x, float z) {
+        TileObserver observer = new TileObserver(x, z);
+        addObserver(observer);
+        return observer;
     }
 
     /**
-     * Enable the terrainState and run the tiler thread
+     * Add an interest point to keep tiles loaded around. Tiles are kept in a
+     * grid around each observer, of its own grid size or the tilers, as well
+     * as around the camera if there is one. Tiles in more than one grid are
+     * only loaded once.
      *
-     * @param state - true to enable and start, false to disable and stop
+     * @param observer - TileObserver to add
      */
-    public void setEnabled(boolean state) {
-        terrainState.setEnabled(state);
+    public void addObserver(TileObserver observer) {
+        if (observers.addIfAbsent(observer)) {
+            if (tileWSize > 0) {
+                observer.cellX = (int) observer.getX() / tileWSize;
+                observer.cellZ = (int) observer.getZ() / tileWSize;
+            }
+            if (observer.camera != null) {
+                lodCamerasChanged = true;
+            }
+            wakeScheduler();
+        }
     }
-    
+
     /**
-     * Get the terrainState isEnabled state
-     * 
-     * @return true|false
+     * Add a camera to keep tiles loaded around, for split screen or
+     * spectator views. The camera is also used for LOD.
+     *
+     * @param cam - Camera to follow
+     * @return TileObserver to set the grid size of or remove later
      */
-    public boolean getEnabled() {
-        return terrainState.isEnabled();
+    public TileObserver addObserver(Camera cam) {
+        TileObserver observer = new TileObserver(cam);
+        addObserver(observer);
+        return observer;
     }
 
     /**
-     * Adds a TerrainTilerAction Handler for parent program to handle events
-     * when new tiles and loaded or old tiles unloaded from the scene.
+     * Remove an interest point, tiles only it wanted are unloaded
      *
-     * @param handler TerrainTilerAction to add to action handlers
+     * @param observer - TileObserver to remove
      */
-    public void addActionHandler(TerrainTilerAction handler) {
-        actionHooks.add(handler);
+    public void removeObserver(TileObserver observer) {
+        if (observers.remove(observer)) {
+            droppedObservers.add(observer);     // tiler thread takes back its counts
+            if (observer.camera != null) {
+                lodCamerasChanged = true;
+            }
+            wakeScheduler();
+        }
+    }
+
+    /**
+     * Follow the main camera with an observer of the tilers grid size
+     */
+    private void addCameraObserver() {
+        TileObserver old = camObserver;
+        camObserver = camera != null ? new TileObserver(camera) : null;
+        if (old != null) {
+            removeObserver(old);
+        }
+        if (camObserver != null) {
+            addObserver(camObserver);
+        }
+    }
+
+    /**
+     * Check if this tiler is headless, with no scene, camera or rendering
+     *
+     * @return true if headless
+     */
+    public boolean isHeadless() {
+        return headless;
+    }
+
+    /**
+     * Track observers and bring loaded tiles into use when running headless.
+     * Call once per server tick. Does nothing otherwise, the app state does
+     * the same each frame.
+     *
+     * @param tpf - float time since the last call
+     */
+    public void update(float tpf) {
+        if (headless && terrainState != null) {
+            terrainState.update(tpf);
+        }
+    }
+
+    /**
+     * return the library version
+     */
+    public double getVersion() {
+        return version;
+    }
+
+    /**
+     * Set the camera we will track for loading tiles
+     *
+     * @param cam - Camera to track
+     */
+    public void setCamera(Camera cam) {
+        this.camera = cam;
+        addCameraObserver();
+    }
+
+    /**
+     * Gets the currently set root directory for finding the Tiles
+     *
+     * @return String containing the tile root directory
+     */
+    public String getTileLocator() {
+        return this.tileLocator;
+    }
+
+    /**
+     * Sets the root directory in which to find the Tiles. Do not use while
+     * setEnabled(true)!
+     *
+     * @param directory - String with the root directory
+     */
+    public void setTileLocator(String directory) {
+        tileCache.clear();
+        synchronized (missingTiles) {
+            missingTiles.clear();       // the new directory may have them
+        }
+        dAssetManager.unregisterLocator(this.tileLocator, FileLocator.class);
+        this.tileLocator = directory;
+        dAssetManager.registerLocator(this.tileLocator, FileLocator.class);
+    }
+
+    /**
+     * Sets the material used for tiles built from raw heights, which carry no
+     * material of their own. Only affects tiles loaded after this call.
+     *
+     * @param mat - Material to share across raw tiles
+     */
+    public void setTileMaterial(Material mat) {
+        synchronized (initLock) {
+            this.tileMaterial = mat;
+        }
+    }
+
+    /**
+     * Get the material used for tiles built from raw heights, creating a
+     * plain one if none has been set.
+     *
+     * @return Material shared by raw tiles
+     */
+    public Material getTileMaterial() {
+        Material mat = tileMaterial;
+        if (mat == null) {
+            synchronized (initLock) {
+                mat = tileMaterial;
+                if (mat == null) {
+                    mat = new Material(dAssetManager, "Common/MatDefs/Misc/Unshaded.j3md");
+                    mat.setColor("Color", ColorRGBA.Gray);
+                    tileMaterial = mat;
+                }
+            }
+        }
+        return mat;
+    }
+
+    /**
+     * Get the tile file type from the map file
+     *
+     * @return String of tile type, null if no map file was used
+     */
+    public String getTileType() {
+        return tileType;
+    }
+
+    /**
+     * Sets the size of the viewable grid, a square window. Must be odd, up to
+     * GridWindow.MAX_RADIUS * 2 + 1. Loading and unloading cost grows with
+     * the tiles that change as the camera moves, not the size of the grid,
+     * but every tile in the grid is held in memory.
+     *
+     * @param size - int of size
+     */
+    public void setGridSize(int size) {
+        if (size > 0 & (size & 1) == 1 & size <= GridWindow.MAX_RADIUS * 2 + 1) {
+            setGridWindow(GridWindow.square(size / 2));
+        }
+    }
+
+    /**
+     * Sets the window of tiles kept loaded around the camera and any
+     * observer without a window of its own, such as a circle or an ellipse
+     * reaching further ahead. Directional windows follow the camera direction,
+     * or the direction an observer is moving in.
+     *
+     * @param window - GridWindow of the shape to keep loaded
+     */
+    public void setGridWindow(GridWindow window) {
+        this.gridSize = window.getRadius() * 2 + 1;
+        this.gridWindow = window;
+        wakeScheduler();
+    }
+
+    /**
+     * Get the window of tiles kept around the camera
+     *
+     * @return GridWindow in use
+     */
+    public GridWindow getGridWindow() {
+        return gridWindow;
+    }
+
+    /**
+     * Sets the number of worker threads used to load tiles in parallel. Takes
+     * effect the next time the tiler is enabled.
+     *
+     * @param threads - int number of loader threads, at least 1
+     */
+    public void setLoaderThreads(int threads) {
+        if (threads > 0) {
+            this.loaderThreads = threads;
+        }
+    }
+
+    /**
+     * Get the number of worker threads used to load tiles
+     *
+     * @return int of loader threads
+     */
+    public int getLoaderThreads() {
+        return loaderThreads;
+    }
+
+    /**
+     * Sets how much the camera heading biases the tile load order. At 0 tiles
+     * load nearest first, larger values load tiles in front of the camera
+     * before those behind it.
+     *
+     * @param weight - float weight, 0 or more
+     */
+    public void setViewPriorityWeight(float weight) {
+        if (weight >= 0) {
+            this.viewWeight = weight;
+        }
+    }
+
+    /**
+     * Get the weight the camera heading has on tile load order
+     *
+     * @return float of view weight
+     */
+    public float getViewPriorityWeight() {
+        return viewWeight;
+    }
+
+    /**
+     * Sets the furthest distance ahead of the camera, along its direction of
+     * travel, that tiles are loaded before they enter the grid. Set to 0 to
+     * turn prefetching off.
+     *
+     * @param distance - float max lookahead in world units
+     */
+    public void setPrefetchDistance(float distance) {
+        if (distance >= 0) {
+            this.prefetchDistance = distance;
+        }
+    }
+
+    /**
+     * Get the max prefetch lookahead distance
+     *
+     * @return float of distance in world units, 0 if prefetching is off
+     */
+    public float getPrefetchDistance() {
+        return prefetchDistance;
+    }
+
+    /**
+     * Sets how many seconds of travel at the current camera speed to look
+     * ahead when prefetching, limited by the prefetch distance.
+     *
+     * @param seconds - float lookahead time
+     */
+    public void setPrefetchTime(float seconds) {
+        if (seconds > 0) {
+            this.prefetchTime = seconds;
+        }
+    }
+
+    /**
+     * Get the prefetch lookahead time
+     *
+     * @return float of seconds
+     */
+    public float getPrefetchTime() {
+        return prefetchTime;
+    }
+
+    /**
+     * Sets the memory budget for tiles loaded ahead of the grid. Prefetching
+     * stops once the estimated size of prefetched tiles reaches this.
+     *
+     * @param bytes - long budget in bytes
+     */
+    public void setPrefetchBudget(long bytes) {
+        if (bytes >= 0) {
+            this.prefetchBudget = bytes;
+        }
+    }
+
+    /**
+     * Get the prefetch memory budget
+     *
+     * @return long of bytes
+     */
+    public long getPrefetchBudget() {
+        return prefetchBudget;
+    }
+
+    /**
+     * Sets the memory budget for the cache of recently detached tiles. Tiles
+     * leaving the grid are kept until this is used up so that going back to
+     * them needs no disk access. Set to 0 to turn the cache off.
+     *
+     * @param bytes - long budget in bytes
+     */
+    public void setCacheBudget(long bytes) {
+        if (bytes >= 0) {
+            tileCache.setBudget(bytes);
+        }
+    }
+
+    /**
+     * Get the memory budget of the detached tile cache
+     *
+     * @return long of bytes
+     */
+    public long getCacheBudget() {
+        return tileCache.getBudget();
+    }
+
+    /**
+     * Get the estimated memory held by the detached tile cache
+     *
+     * @return long of bytes
+     */
+    public long getCacheUsed() {
+        return tileCache.getUsed();
+    }
+
+    /**
+     * Sets the memory budget for all the tiles the tiler holds, those in the
+     * grid, loading, prefetched and in the detached tile cache. When the
+     * tiles wanted need more than this the tiles furthest from the observers
+     * are shed: prefetched tiles and the cache go first, then the furthest
+     * grid tiles are detached and dropped, or not loaded, until the rest fit.
+     * Shed tiles are loaded again, nearest first, as room comes free. With a
+     * far field the shed tiles are drawn from the coarse overview instead,
+     * otherwise they are left empty and height queries there return NaN. The
+     * tile each observer is in is always held, so the budget can be
+     * overrun by the tiles under the observers.
+     *
+     * Memory is estimated from the heights, vertex and index buffers of each
+     * tile as loaded.
+     *
+     * @param bytes - long budget in bytes, 0 for no limit
+     */
+    public void setMemoryBudget(long bytes) {
+        if (bytes >= 0) {
+            this.memoryBudget = bytes;
+            wakeScheduler();
+        }
+    }
+
+    /**
+     * Get the memory budget of all tiles held
+     *
+     * @return long of bytes, 0 for no limit
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Get the estimated memory held by tiles, loaded or in the detached tile
+     * cache, heap and direct buffers together
+     *
+     * @return long of bytes
+     */
+    public long getMemoryUsed() {
+        long bytes = tileCache.getUsed();
+        for (Tile t : tileRegistry.toArray()) {
+            bytes += t.heapBytes + t.directBytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Record the memory a tile holds now it is loaded
+     *
+     * @param t - Tile with its quad or heights set
+     */
+    private void measureTile(Tile t) {
+        TerrainQuad tq = t.quad;
+        TileHeights heights = t.heights;
+        long heap = heights != null & heights != oobHeights ? heights.getBytes() : 0;
+        long direct = 0;
+        if (tq != null) {
+            heap += TileCache.heapBytes(tq);
+            direct = TileCache.directBytes(tq);
+        }
+        t.heapBytes = heap;
+        t.directBytes = direct;
+        if (heap + direct > largestTile) {
+            largestTile = heap + direct;    // racing loaders may lose a little, only an estimate
+        }
+    }
+
+    /**
+     * Bytes to allow for a tile not loaded yet
+     */
+    private long tileEstimate() {
+        long largest = largestTile;
+        return largest > 0 ? largest : (long) (tileSize + 1) * (tileSize + 1) * TILE_VERTEX_BYTES;
+    }
+
+    /**
+     * Keep a tile no longer in use in the detached tile cache. Placeholder
+     * tiles are kept as spares to move into the next missing tile, unless
+     * they have been edited.
+     *
+     * @param t - Tile removed from the registry
+     */
+    private void cacheTile(Tile t) {
+        TerrainQuad tile = t.quad;
+        if (tile == null | t.shed) {
+            return;     // shed tiles are dropped to free their memory
+        }
+        if (!tile.getName().startsWith("OOB")) {
+            tileCache.put(t.key, tile);
+        } else if (t.heights == oobHeights && oobSpares.size() < gridSize * 2) {
+            oobSpares.offer(tile);      // enough to cover a row entering on each side
+        }
+    }
+
+    /**
+     * Sets how long each frame may spend attaching and removing tiles. As
+     * many tiles as fit are handled each frame, but always at least one.
+     *
+     * @param millis - float budget in milliseconds per frame
+     */
+    public void setUpdateBudget(float millis) {
+        if (millis >= 0) {
+            this.updateBudget = millis;
+        }
+    }
+
+    /**
+     * Get the per frame budget for attaching and removing tiles
+     *
+     * @return float of milliseconds
+     */
+    public float getUpdateBudget() {
+        return updateBudget;
+    }
+
+    /**
+     * Sets the longest time the tiler thread will sleep before rechecking the
+     * grid. It is also woken each time the camera enters a new tile cell.
+     *
+     * @param millis - long poll interval in milliseconds, at least 1
+     */
+    public void setPollInterval(long millis) {
+        if (millis > 0) {
+            this.pollInterval = millis;
+        }
+    }
+
+    /**
+     * Get the tiler thread poll interval
+     *
+     * @return long of poll interval in milliseconds
+     */
+    public long getPollInterval() {
+        return pollInterval;
+    }
+
+    /**
+     * Get the current size of the viewable grid
+     *
+     * @return int of gridSize, the width of the window for other shapes
+     */
+    public int getGridSize() {
+        return gridSize;
+    }
+
+    /**
+     * Set the max number of terrain tiles to use in the X direction <16...4096>
+     * Do not set to less than current location or player will be plunged 
+     * into the void!
+     * 
+     * @param number
+     */
+    public void setNumTilesX(int number) {
+        if (number > 4 & (number & (number - 1)) == 0) {
+            this.numTilesX = number;
+        }
+    }
+
+    /**
+     * Get the current max number of tiles in the X direction
+     *
+     * @return int number of tiles
+     */
+    public int getNumTilesX() {
+        return numTilesX;
+    }
+
+    /**
+     * Set the max number of terrain tiles to use in the Z direction <16...4096>
+     * Do not set to less than current location or player will be plunged 
+     * into the void!
+     * 
+     * @param number
+     */
+    public void setNumTilesZ(int number) {
+        if (number > 4 & (number & (number - 1)) == 0) {
+            this.numTilesZ = number;
+        }
+    }
+
+    /**
+     * Get the current max number of tiles in the Z direction
+     *
+     * @return int number of tiles
+     */
+    public int getNumTilesZ() {
+        return numTilesZ;
+    }
+
+    /**
+     * Get the current tile size (unscaled)
+     *
+     * @return - int of size
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Check if a tile has data, without loading it
+     *
+     * @param tileX - Tile X location
+     * @param tileZ - Tile Z location
+     * @return false if the map records the tile as missing or it has been
+     * found missing, true otherwise
+     */
+    public boolean hasTileData(int tileX, int tileZ) {
+        if (tileX < 0 | tileX >= numTilesX | tileZ < 0 | tileZ >= numTilesZ) {
+            return false;
+        }
+        TilePack pack = tilePack;
+        if (pack != null && !pack.hasTile(tileX, tileZ)) {
+            return false;
+        }
+        return !isMissing(tileX, tileZ);
+    }
+
+    /**
+     * Get the lowest height of a tile as recorded by the baker, without
+     * loading it
+     *
+     * @param tileX - Tile X location
+     * @param tileZ - Tile Z location
+     * @return float of height, NaN if the map does not record heights or the
+     * tile is missing
+     */
+    public float getTileMinHeight(int tileX, int tileZ) {
+        if (!hasTileData(tileX, tileZ)) {
+            return Float.NaN;
+        }
+        if (tilePack != null) {
+            return tilePack.getMinHeight(tileX, tileZ);
+        }
+        return tileIndex != null ? tileIndex.getMinHeight(tileX, tileZ) : Float.NaN;
+    }
+
+    /**
+     * Get the highest height of a tile as recorded by the baker, without
+     * loading it
+     *
+     * @param tileX - Tile X location
+     * @param tileZ - Tile Z location
+     * @return float of height, NaN if the map does not record heights or the
+     * tile is missing
+     */
+    public float getTileMaxHeight(int tileX, int tileZ) {
+        if (!hasTileData(tileX, tileZ)) {
+            return Float.NaN;
+        }
+        if (tilePack != null) {
+            return tilePack.getMaxHeight(tileX, tileZ);
+        }
+        return tileIndex != null ? tileIndex.getMaxHeight(tileX, tileZ) : Float.NaN;
+    }
+
+    /**
+     * Sets the scale to apply to each tile Do not use while setEnabled(true)!
+     *
+     * @param scale - int of scale factor
+     */
+    public void setTileScale(int scale) {
+        if (scale > 0) {
+            tileCache.clear();
+            this.tileScale = scale;
+            this.tileWSize = this.tileSize * this.tileScale;
+        }
+    }
+
+    /**
+     * Get the current tile scaling factor
+     *
+     * @return - int of scale
+     */
+    public int getTileScale() {
+        return tileScale;
+    }
+
+    /**
+     * Sets how far from the camera to draw coarse terrain past the tile grid,
+     * so the view does not end at the last loaded tile. Needs a map with a
+     * tileOverview, as baked by the TileBaker. Cells under attached tiles are
+     * left out, so the far field only fills in around the grid.
+     *
+     * @param distance - float world distance, 0 to turn the far field off
+     */
+    public void setFarDistance(float distance) {
+        if (headless | tileOverview == null) {
+            if (distance > 0) {
+                tLog.log(Level.WARNING, "TerrainTiler: No tile overview for the far field");
+            }
+            return;
+        }
+        FarField far = farField;
+        if (distance <= 0) {
+            if (far != null) {
+                this.detachChild(far);
+                farField = null;
+            }
+            return;
+        }
+        if (far == null) {
+            far = new FarField(tileOverview, tileSize, tileScale, getTileMaterial());
+            this.attachChild(far);
+        }
+        far.setDistance(distance);
+        farField = far;
+    }
+
+    /**
+     * Get how far the far field is drawn
+     *
+     * @return float world distance, 0 if off
+     */
+    public float getFarDistance() {
+        FarField far = farField;
+        return far == null ? 0 : far.getDistance();
+    }
+
+    /**
+     * Sets the material of the far field, by default the tile material.
+     * Texture coordinates run 0 to 1 across each tile, as on TerrainQuads.
+     *
+     * @param mat - Material for the far field
+     */
+    public void setFarMaterial(Material mat) {
+        FarField far = farField;
+        if (far != null) {
+            far.setFarMaterial(mat);
+        }
+    }
+
+    /**
+     * Enable the terrainState and run the tiler thread
+     *
+     * @param state - true to enable and start, false to disable and stop
+     */
+    public void setEnabled(boolean state) {
+        if (state & closed) {
+            tLog.log(Level.WARNING, "TerrainTiler: Can not enable a closed tiler");
+            return;
+        }
+        terrainState.setEnabled(state);
+    }
+
+    /**
+     * Stop the tiler and let go of everything it holds: the tiler and loader
+     * threads, the tiles, the far field, the raw, pack, index and overview
+     * files, the edit pool and the JMX registration. Done when the appState
+     * is cleaned up, so only a headless tiler, or one whose app never cleans
+     * up its states, needs closing by hand. The tiler can not be enabled
+     * again after. Closing again does nothing.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (terrainState != null) {
+            terrainState.setEnabled(false);
+        }
+        unregisterMBean();
+        synchronized (this) {
+            if (editorPool != null) {
+                editorPool.shutdown();
+                editorPool = null;
+            }
+        }
+        if (rawTiles != null) {
+            rawTiles.close();
+        }
+        if (tilePack != null) {
+            tilePack.close();
+        }
+        if (tileIndex != null) {
+            tileIndex.close();
+        }
+        FarField far = farField;
+        if (far != null) {
+            this.detachChild(far);
+            farField = null;
+        }
+        if (tileOverview != null) {
+            tileOverview.close();
+        }
+    }
+    
+    /**
+     * Get the terrainState isEnabled state
+     * 
+     * @return true|false
+     */
+    public boolean getEnabled() {
+        return terrainState.isEnabled();
+    }
+
+    /**
+     * Adds a TerrainTilerAction Handler for parent program to handle events
+     * when new tiles and loaded or old tiles unloaded from the scene.
+     *
+     * @param handler TerrainTilerAction to add to action handlers
+     */
+    public void addActionHandler(TerrainTilerAction handler) {
+        actionHooks.add(handler);
+    }
+
+    /**
+     * Removes a TerrainTilerAction handler from the list
+     *
+     * @param handler TerrainTilerAction to remove
+     */
+    public void delActionHandler(TerrainTilerAction handler) {
+        actionHooks.remove(handler);
+    }
+
+    /**
+     * Get the interpolated height at the specified point
+     *
+     * @param xz = Vector2f of World Coordinate
+     * @return float of the height or NaN if tile not loaded
+     */
+    @Override
+    public float getHeight(Vector2f xz) {
+        return snapshot.get().getHeight(xz.x, xz.y);
+    }
+
+    /**
+     * Return the normal for the specified point
+     *
+     * @param xz = Vector2f of World Coordinate
+     * @return Vector3f or the normal or .ZERO if tile not loaded
+     */
+    @Override
+    public Vector3f getNormal(Vector2f xz) {
+        float[] n = new float[3];
+        if (snapshot.get().getNormal(xz.x, xz.y, n, 0)) {
+            return new Vector3f(n[0], n[1], n[2]);
+        } else {
+            return Vector3f.ZERO;
+        }
+    }
+
+    /**
+     * Get the interpolated heights of many points at once without allocating.
+     * Safe to call from worker threads while tiles are being swapped. See
+     * TerrainSnapshot, hold a snapshot instead to keep a batch of calls
+     * consistent with each other.
+     *
+     * @param x - float array of World X coordinates
+     * @param z - float array of World Z coordinates
+     * @param heights - float array to fill, NaN where no tile is loaded
+     * @param count - int number of points
+     */
+    public void getHeights(float[] x, float[] z, float[] heights, int count) {
+        snapshot.get().getHeights(x, z, heights, count);
+    }
+
+    /**
+     * Get the interpolated heights of many points at once without allocating.
+     *
+     * @param xz - FloatBuffer of World x, z pairs from its position to its
+     * limit, the position is not changed
+     * @param heights - FloatBuffer to fill from its position, one height per
+     * pair, the position is not changed
+     */
+    public void getHeights(FloatBuffer xz, FloatBuffer heights) {
+        snapshot.get().getHeights(xz, heights);
+    }
+
+    /**
+     * Get the normals of many points at once without allocating. Safe to call
+     * from worker threads while tiles are being swapped.
+     *
+     * @param x - float array of World X coordinates
+     * @param z - float array of World Z coordinates
+     * @param normals - float array to fill with x, y, z of each normal, 0, 0,
+     * 0 where no tile is loaded
+     * @param count - int number of points
+     */
+    public void getNormals(float[] x, float[] z, float[] normals, int count) {
+        snapshot.get().getNormals(x, z, normals, count);
+    }
+
+    /**
+     * Get the normals of many points at once without allocating.
+     *
+     * @param xz - FloatBuffer of World x, z pairs from its position to its
+     * limit, the position is not changed
+     * @param normals - FloatBuffer to fill from its position with x, y, z of
+     * each normal, the position is not changed
+     */
+    public void getNormals(FloatBuffer xz, FloatBuffer normals) {
+        snapshot.get().getNormals(xz, normals);
+    }
+
+    /**
+     * Get the running figures on tile streaming, load times, bytes read,
+     * tile counts, cache hits, frame times and late tiles
+     *
+     * @return TilerMetrics of this tiler
+     */
+    public TilerMetrics getMetrics() {
+        return metrics;
     }
 
     /**
-     * Removes a TerrainTilerAction handler from the list
+     * Publish the metrics over JMX, as com.radans.TerrainTiler:type=TilerMetrics
+     * with the given name, so they can be watched from jconsole or a
+     * monitoring agent. Registering again replaces the earlier name.
      *
-     * @param handler TerrainTilerAction to remove
+     * @param name - String to tell tilers apart, e.g. the map name
+     * @return true if registered
      */
-    public void delActionHandler(TerrainTilerAction handler) {
-        actionHooks.remove(handler);
+    public synchronized boolean registerMBean(String name) {
+        unregisterMBean();
+        try {
+            ObjectName on = new ObjectName("com.radans.TerrainTiler:type=TilerMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, on);
+            mbeanName = on;
+            return true;
+        } catch (JMException ex) {
+            tLog.log(Level.WARNING, "Could not register tiler metrics: {0}", ex.getMessage());
+            return false;
+        }
     }
 
     /**
-     * Get the interpolated height at the specified point
-     *
-     * @param xz = Vector2f of World Coordinate
-     * @return float of the height or NaN if tile not loaded
+     * Withdraw the metrics from JMX, done anyway when the tiler is cleaned up
      */
-    @Override
-    public float getHeight(Vector2f xz) {
-        // work out which tile it is
-        int tx = (int) xz.x / tileWSize;
-        int tz = (int) xz.y / tileWSize;
-        int tk = tx + (tz * maxTiles);
-        if (tileSet.containsKey(tk)) {
-            return tileSet.get(tk).getHeight(xz);
-        } else {
-            return Float.NaN;
+    public synchronized void unregisterMBean() {
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException ex) {
+                tLog.log(Level.WARNING, "Could not unregister tiler metrics: {0}", ex.getMessage());
+            }
+            mbeanName = null;
         }
     }
 
     /**
-     * Return the normal for the specified point
+     * Get the current snapshot of attached tiles. The snapshot never changes,
+     * a new one is published each time tiles are attached, removed or edited,
+     * so it can be queried from any thread without locking.
      *
-     * @param xz = Vector2f of World Coordinate
-     * @return Vector3f or the normal or .ZERO if tile not loaded
+     * @return TerrainSnapshot of the attached tiles
      */
-    @Override
-    public Vector3f getNormal(Vector2f xz) {
-        // work out which tile it is
-        int tx = (int) xz.x / tileWSize;
-        int tz = (int) xz.y / tileWSize;
-        int tk = tx + (tz * maxTiles);
-        if (tileSet.containsKey(tk)) {
-            return tileSet.get(tk).getNormal(xz);
-        } else {
-            return Vector3f.ZERO;
+    public TerrainSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    /**
+     * Publish a new snapshot of the attached tiles for queries. Called on the
+     * render thread after tiles are attached, removed or edited.
+     */
+    private synchronized void publishSnapshot() {
+        int n = tileRegistry.copyTo(snapTiles);
+        if (n > snapTiles.length) {
+            snapTiles = new Tile[n * 2];
+            n = tileRegistry.copyTo(snapTiles);
+        }
+        int attached = 0;
+        for (int i = 0; i < n; i++) {
+            Tile t = snapTiles[i];
+            if (t.getState() == TileState.ATTACHED & t.heights != null) {
+                snapTiles[attached++] = t;
+            }
         }
+        snapshot.set(new TerrainSnapshot(++snapshotVersion, snapTiles, attached, maxTiles, tileWSize, tileScale));
     }
 
     /**
@@ -543,89 +1941,120 @@ public class TerrainTiler extends Node implements Terrain, NeighbourFinder {
      */
     @Override
     public float getHeightmapHeight(Vector2f xz) {
-        // work out which tile it is
-        int tx = (int) xz.x / tileWSize;
-        int tz = (int) xz.y / tileWSize;
-        int tk = tx + (tz * maxTiles);
-        if (tileSet.containsKey(tk)) {
-            return tileSet.get(tk).getHeightmapHeight(xz);
-        } else {
-            return Float.NaN;
-        }
+        return snapshot.get().getHeightmapHeight(xz.x, xz.y);
     }
 
     /**
-     * Set the terrain Height at the specified World coordinate
+     * Set the terrain Height at the specified World coordinate. Each call
+     * copies the height rows it changes in every tile holding the point, one
+     * row of tileSize + 1 floats a tile, so the queries see the new height at
+     * once. For brushes pass all the points to the List version, which makes
+     * one copy of each row however many points are in it.
      *
      * @param xzCoordinate - Vector2f World Coordinate x,z
      * @param height - float of new height
      */
     @Override
     public void setHeight(Vector2f xzCoordinate, float height) {
-        if (!terrainLocked) {
-            int tx = (int) xzCoordinate.x / tileWSize;
-            int tz = (int) xzCoordinate.y / tileWSize;
-            int tk = tx + (tz * maxTiles);
-            if (tileSet.containsKey(tk)) {
-                tileSet.get(tk).setHeight(xzCoordinate, height);
-            }
-        }
+        editHeights(Collections.singletonList(xzCoordinate), Collections.singletonList(height), true);
     }
 
     /**
-     * Set the height of many points
+     * Set the height of many points. Points on the edge between tiles are set
+     * in both.
      *
      * @param xz - List<Vector2f> of World Coordinates x,z
      * @param height - List<Float> matching list of height values
      */
     @Override
     public void setHeight(List<Vector2f> xz, List<Float> height) {
-        if (!terrainLocked) {
-            Iterator it = tileFlag.keySet().iterator();
-            while (it.hasNext()) {
-                int ik = (Integer) it.next();
-                if (tileFlag.get(ik) == 3) {
-                    tileSet.get(ik).setHeight(xz, height);
-                }
-            }
-        }
+        editHeights(xz, height, true);
     }
 
     /**
-     * Adjust the height of a point up or down bu the amount specified
+     * Adjust the height of a point up or down bu the amount specified. Costs
+     * the same as setHeight of one point.
      *
      * @param xzCoordinate - Vector2f of the World Coordinate x,z
      * @param delta - float to adjust the point by +/-
      */
     @Override
     public void adjustHeight(Vector2f xzCoordinate, float delta) {
-        if (!terrainLocked) {
-            int tx = (int) xzCoordinate.x / tileWSize;
-            int tz = (int) xzCoordinate.y / tileWSize;
-            int tk = tx + (tz * maxTiles);
-            if (tileSet.containsKey(tk)) {
-                tileSet.get(tk).adjustHeight(xzCoordinate, delta);
-            }
-        }
+        editHeights(Collections.singletonList(xzCoordinate), Collections.singletonList(delta), false);
     }
 
     /**
-     * Adjust the height of many points
+     * Adjust the height of many points. Points on the edge between tiles are
+     * adjusted in both.
      *
      * @param xz - List<Vector2f> of World Coordinates x,z
      * @param height - List<Float> matching list of height adjustment values
      */
     @Override
     public void adjustHeight(List<Vector2f> xz, List<Float> height) {
-        if (!terrainLocked) {
-            Iterator it = tileFlag.keySet().iterator();
-            while (it.hasNext()) {
-                int ik = (Integer) it.next();
-                if (tileFlag.get(ik) == 3) {
-                    tileSet.get(ik).adjustHeight(xz, height);
-                }
+        editHeights(xz, height, false);
+    }
+
+    /**
+     * Set or adjust heights in the tiles in use. The points are shared out to
+     * the tiles holding them and the tiles edited in parallel, each only
+     * redoing the patches, vertices and normals around its own points, see
+     * HeightEditor. Every tile edited gets a new copy of its heights, sharing
+     * all but the rows changed, and the snapshot is published once for the
+     * whole list.
+     *
+     * @param xz - List<Vector2f> of World Coordinates x,z
+     * @param height - List<Float> matching list of heights or adjustments
+     * @param set - true to set the heights, false to adjust them
+     */
+    private void editHeights(List<Vector2f> xz, List<Float> height, boolean set) {
+        if (xz.size() != height.size()) {
+            throw new IllegalArgumentException("Both lists must be the same length!");
+        }
+        if (terrainLocked | xz.isEmpty()) {
+            return;
+        }
+        HeightEditor editor = new HeightEditor(tileSize, tileScale, numTilesX, numTilesZ, maxTiles);
+        for (int i = 0; i < xz.size(); i++) {
+            editor.add(xz.get(i).x, xz.get(i).y, height.get(i));
+        }
+        MultiTerrainLodControl lod = terrainMLOD;
+        boolean entropies = lod != null && !(lod.getLodCalculator() instanceof DistanceLodCalculator);
+        List<HeightEditor.TileEdit> edited = editor.apply(tileRegistry, set, entropies, getEditorPool());
+        for (HeightEditor.TileEdit e : edited) {
+            if (e.count > 0) {
+                e.tile.heights = e.heights;     // keep query copy in step
             }
         }
+        if (!edited.isEmpty()) {
+            publishSnapshot();
+            if (entropies) {
+                lod.forceUpdate();      // levels picked on entropy may change
+            }
+        }
+    }
+
+    /**
+     * Pool spreading height edits over the cores, started on first use.
+     * Null on a single core, where edits run on the calling thread.
+     */
+    private synchronized ExecutorService getEditorPool() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        if (editorPool == null & cores > 1 & !closed) {
+            final AtomicInteger count = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(cores, cores, 30L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "Terrain Tiler Editor-" + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);  // edits come in bursts, let the threads go between
+            editorPool = pool;
+        }
+        return editorPool;
     }
 
     /**
@@ -636,8 +2065,9 @@ public class TerrainTiler extends Node implements Terrain, NeighbourFinder {
     @Override
     public float[] getHeightMap() {
         int tk = gridCenterX + (gridCenterZ * maxTiles);
-        if (tileSet.containsKey(tk)) {
-            return tileSet.get(tk).getHeightMap();
+        TileHeights th = snapshot.get().getTileHeights(tk);
+        if (th != null) {
+            return th.copyHeights();
         } else {
             return null;
         }
@@ -654,8 +2084,9 @@ public class TerrainTiler extends Node implements Terrain, NeighbourFinder {
         int tx = (int) worldLocation.x / tileWSize;
         int tz = (int) worldLocation.z / tileWSize;
         int tk = tx + (tz * maxTiles);
-        if (tileSet.containsKey(tk)) {
-            return tileSet.get(tk).getHeightMap();
+        TileHeights th = snapshot.get().getTileHeights(tk);
+        if (th != null) {
+            return th.copyHeights();
         } else {
             return null;
         }
@@ -669,8 +2100,9 @@ public class TerrainTiler extends Node implements Terrain, NeighbourFinder {
     @Override
     public int getMaxLod() {
         int tk = gridCenterX + (gridCenterZ * maxTiles);
-        if (tileSet.containsKey(tk)) {
-            return tileSet.get(tk).getMaxLod();
+        TerrainQuad tq = snapshot.get().getQuad(tk);
+        if (tq != null) {
+            return tq.getMaxLod();
         } else {
             return 1;
         }
@@ -705,11 +2137,9 @@ public class TerrainTiler extends Node implements Terrain, NeighbourFinder {
     @Override
     public void generateEntropy(ProgressMonitor monitor) {
         if (!terrainLocked) {
-            Iterator it = tileFlag.keySet().iterator();
-            while (it.hasNext()) {
-                int ik = (Integer) it.next();
-                if (tileFlag.get(ik) == 3) {
-                    tileSet.get(ik).generateEntropy(monitor);
+            for (Tile t : tileRegistry.toArray()) {
+                if (t.getState() == TileState.ATTACHED & t.quad != null) {
+                    t.quad.generateEntropy(monitor);
                 }
             }
         }
@@ -723,8 +2153,9 @@ public class TerrainTiler extends Node implements Terrain, NeighbourFinder {
     @Override
     public Material getMaterial() {
         int tk = gridCenterX + (gridCenterZ * maxTiles);
-        if (tileSet.containsKey(tk)) {
-            return tileSet.get(tk).getMaterial();
+        TerrainQuad tq = snapshot.get().getQuad(tk);
+        if (tq != null) {
+            return tq.getMaterial();
         } else {
             return null;
         }
@@ -742,8 +2173,9 @@ public class TerrainTiler extends Node implements Terrain, NeighbourFinder {
         int tx = (int) worldLocation.x / tileWSize;
         int tz = (int) worldLocation.y / tileWSize;
         int tk = tx + (tz * maxTiles);
-        if (tileSet.containsKey(tk)) {
-            return tileSet.get(tk).getMaterial();
+        TerrainQuad tq = snapshot.get().getQuad(tk);
+        if (tq != null) {
+            return tq.getMaterial();
         } else {
             return null;
         }
@@ -760,8 +2192,9 @@ public class TerrainTiler extends Node implements Terrain, NeighbourFinder {
         int tx = (int) worldLocation.x / tileWSize;
         int tz = (int) worldLocation.y / tileWSize;
         int tk = tx + (tz * maxTiles);
-        if (tileSet.containsKey(tk)) {
-            tileSet.get(tk).setMaterial(mat);
+        TerrainQuad tq = tileRegistry.getQuad(tk);
+        if (tq != null) {
+            tq.setMaterial(mat);
         }
     }
 
@@ -784,6 +2217,29 @@ public class TerrainTiler extends Node implements Terrain, NeighbourFinder {
         return 1;
     }
 
+    /**
+     * Find the attached tile of a quad, for the NeighbourFinder. One registry
+     * lookup, its links then give the neighbours. Nothing is cached between
+     * calls, as the LOD runs on its own thread and could otherwise be handed
+     * a tile detached since.
+     *
+     * @param center TerrainQuad
+     * @return Tile or null if the quad is not an attached tile
+     */
+    private Tile neighbourTile(TerrainQuad center) {
+        int tx = (int) center.getLocalTranslation().x / tileWSize;
+        int tz = (int) center.getLocalTranslation().z / tileWSize;
+        Tile t = tileRegistry.get(tx + (tz * maxTiles));
+        if (t == null || t.quad != center || t.getState() != TileState.ATTACHED) {
+            return null;
+        }
+        return t;
+    }
+
+    private static TerrainQuad linkedQuad(Tile t) {
+        return t != null ? t.quad : null;
+    }
+
     /*
      * For NeigborFinder LOD routines
      * gets the quad to centers right (+x)
@@ -793,16 +2249,8 @@ public class TerrainTiler extends Node implements Terrain, NeighbourFinder {
      */
     @Override
     public TerrainQuad getRightQuad(TerrainQuad center) {
-        int tx = (int) center.getLocalTranslation().x / tileWSize;
-        int tz = (int) center.getLocalTranslation().z / tileWSize;
-        if (tx < numTilesX - 1) {
-            tx++;
-            int tk = tx + (tz * maxTiles);
-            if (tileSet.containsKey(tk)) {
-                return tileSet.get(tk);
-            }
-        }
-        return null;
+        Tile t = neighbourTile(center);
+        return t != null ? linkedQuad(t.right) : null;
     }
 
     /**
@@ -813,16 +2261,8 @@ public class TerrainTiler extends Node implements Terrain, NeighbourFinder {
      */
     @Override
     public TerrainQuad getLeftQuad(TerrainQuad center) {
-        int tx = (int) center.getLocalTranslation().x / tileWSize;
-        int tz = (int) center.getLocalTranslation().z / tileWSize;
-        if (tx > 0) {
-            tx--;
-            int tk = tx + (tz * maxTiles);
-            if (tileSet.containsKey(tk)) {
-                return tileSet.get(tk);
-            }
-        }
-        return null;
+        Tile t = neighbourTile(center);
+        return t != null ? linkedQuad(t.left) : null;
     }
 
     /**
@@ -833,16 +2273,8 @@ public class TerrainTiler extends Node implements Terrain, NeighbourFinder {
      */
     @Override
     public TerrainQuad getDownQuad(TerrainQuad center) {
-        int tx = (int) center.getLocalTranslation().x / tileWSize;
-        int tz = (int) center.getLocalTranslation().z / tileWSize;
-        if (tz < numTilesZ - 1) {
-            tz++;
-            int tk = tx + (tz * maxTiles);
-            if (tileSet.containsKey(tk)) {
-                return tileSet.get(tk);
-            }
-        }
-        return null;
+        Tile t = neighbourTile(center);
+        return t != null ? linkedQuad(t.down) : null;
     }
 
     /**
@@ -853,94 +2285,575 @@ public class TerrainTiler extends Node implements Terrain, NeighbourFinder {
      */
     @Override
     public TerrainQuad getTopQuad(TerrainQuad center) {
-        int tx = (int) center.getLocalTranslation().x / tileWSize;
-        int tz = (int) center.getLocalTranslation().z / tileWSize;
-        if (tz > 0) {
-            tz--;
-            int tk = tx + (tz * maxTiles);
-            if (tileSet.containsKey(tk)) {
-                return tileSet.get(tk);
-            }
-        }
-        return null;
+        Tile t = neighbourTile(center);
+        return t != null ? linkedQuad(t.top) : null;
     }
 
     private class terrainThread extends Thread {
 
         private boolean firstRun;
+        private Tile[] schedTiles = new Tile[128];  // reused each pass over the registry
+        private final TileRefs refs = new TileRefs();   // observers wanting each tile
+        private int[] pending = new int[64];            // tiles newly wanted since the last scan
+        private int pendingCount;
+        private final TileRefs shed = new TileRefs();   // wanted tiles left out to keep in budget
+        private long[] ranked = new long[128];          // tiles by rank, reused by keepInBudget
+        private int[] shedKeys = new int[64];
         /*
          * terrainThread constructor
          */
 
         terrainThread() {
             this.setName("Terrain Tiler Thread");
-            gridCenterX = (int) camera.getLocation().x / tileWSize;
-            gridCenterZ = (int) camera.getLocation().z / tileWSize;
-            tileSet = new ConcurrentHashMap<>(gridSize * gridSize);
-            tileFlag = new ConcurrentHashMap<>(gridSize * gridSize);
+            if (camera != null) {
+                gridCenterX = (int) camera.getLocation().x / tileWSize;
+                gridCenterZ = (int) camera.getLocation().z / tileWSize;
+                trackCamera();
+            }
+            camCellX = gridCenterX;
+            camCellZ = gridCenterZ;
+            prefetchCellX = gridCenterX;
+            prefetchCellZ = gridCenterZ;
+            camVelX = 0;
+            camVelZ = 0;
             firstRun = true;
+            droppedObservers.clear();
+            lostTile = false;
+            for (TileObserver o : observers) {
+                o.applied = false;      // counts start again with this thread
+            }
+        }
+
+        /**
+         * Bring the tile reference counts up to date with where each observer
+         * is. Only the tiles entering or leaving an observers window are
+         * counted, so a move costs the tiles that changed rather than the
+         * whole window.
+         */
+        private void applyObservers() {
+            TileObserver o;
+            while ((o = droppedObservers.poll()) != null) {
+                if (o.applied) {
+                    countWindow(o.appliedX, o.appliedZ, o.appliedWindow.spans(o.appliedSector), null, 0, 0, -1);
+                    o.applied = false;
+                }
+            }
+            GridWindow shared = gridWindow;
+            for (TileObserver ob : observers) {
+                int cx = ob.cellX;
+                int cz = ob.cellZ;
+                if (cx == Integer.MIN_VALUE) {
+                    continue;           // not placed yet
+                }
+                GridWindow w = ob.getWindow();
+                if (w == null) {
+                    w = shared;
+                }
+                int sector = w.isDirectional() ? ob.sector : 0;
+                if (ob.applied && ob.appliedX == cx & ob.appliedZ == cz
+                        & ob.appliedWindow == w & ob.appliedSector == sector) {
+                    continue;
+                }
+                int[] spans = w.spans(sector);
+                if (ob.applied) {
+                    int[] old = ob.appliedWindow.spans(ob.appliedSector);
+                    countWindow(ob.appliedX, ob.appliedZ, old, spans, cx, cz, -1);
+                    countWindow(cx, cz, spans, old, ob.appliedX, ob.appliedZ, 1);
+                } else {
+                    countWindow(cx, cz, spans, null, 0, 0, 1);
+                }
+                ob.applied = true;
+                ob.appliedX = cx;
+                ob.appliedZ = cz;
+                ob.appliedWindow = w;
+                ob.appliedSector = sector;
+            }
+        }
+
+        /**
+         * Add to the reference count of every tile in one window that is not
+         * in another. Windows are runs of tiles on each row, see GridWindow,
+         * so each row costs only the tiles that differ.
+         *
+         * @param cx - window center tile X
+         * @param cz - window center tile Z
+         * @param spans - int array of first, last pairs of the window rows
+         * @param other - spans of the other window, or null for none
+         * @param ox - other window center tile X
+         * @param oz - other window center tile Z
+         * @param delta - int +1 or -1
+         */
+        private void countWindow(int cx, int cz, int[] spans, int[] other, int ox, int oz, int delta) {
+            int radius = spans.length / 4;
+            int oRadius = other == null ? 0 : other.length / 4;
+            for (int dz = -radius; dz <= radius; dz++) {
+                int tz = cz + dz;
+                if (tz < 0 | tz >= numTilesZ) {
+                    continue;
+                }
+                int x0 = cx + spans[(dz + radius) * 2];
+                int x1 = cx + spans[(dz + radius) * 2 + 1];
+                int orow = tz - oz;
+                if (other == null || orow < -oRadius | orow > oRadius) {
+                    countSpan(tz, x0, x1, delta);
+                    continue;
+                }
+                int o0 = ox + other[(orow + oRadius) * 2];
+                int o1 = ox + other[(orow + oRadius) * 2 + 1];
+                if (o0 > o1) {
+                    countSpan(tz, x0, x1, delta);
+                } else {
+                    countSpan(tz, x0, Math.min(x1, o0 - 1), delta);    // left of the other run
+                    countSpan(tz, Math.max(x0, o1 + 1), x1, delta);    // right of it
+                }
+            }
+        }
+
+        /**
+         * Add to the reference count of a run of tiles on one row, marking
+         * tiles wanted as they gain their first observer and sending them for
+         * removal as they lose their last
+         */
+        private void countSpan(int tz, int x0, int x1, int delta) {
+            x0 = Math.max(x0, 0);
+            x1 = Math.min(x1, numTilesX - 1);
+            for (int tx = x0; tx <= x1; tx++) {
+                int tk = tx + (tz * maxTiles);
+                int count = refs.add(tk, delta);
+                if (count == 1 & delta > 0) {
+                    Tile t = tileRegistry.get(tk);
+                    if (t != null) {
+                        t.wanted = true;
+                    }
+                    if (pendingCount == pending.length) {
+                        pending = Arrays.copyOf(pending, pendingCount * 2);
+                    }
+                    pending[pendingCount++] = tk;   // check it is loaded this pass
+                } else if (count == 0) {
+                    if (shed.get(tk) > 0) {
+                        shed.add(tk, -1);       // no longer wanted at all
+                    }
+                    Tile t = tileRegistry.get(tk);
+                    if (t != null) {
+                        t.wanted = false;
+                        TileState state = t.getState();
+                        if ((state == TileState.LOADED | state == TileState.ATTACHED)
+                                && t.setState(state, TileState.DETACHING)) {
+                            newTile = true;     // now outside every window
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Load or reuse a wanted tile if it is not tracked yet
+         */
+        private void requireTile(int tk) {
+            if (refs.get(tk) > 0 && shed.get(tk) == 0 && tileRegistry.get(tk) == null) {
+                int tx = tk % maxTiles;
+                int tz = tk / maxTiles;
+                TerrainQuad tq = tileCache.take(tk);
+                metrics.cacheLookup(tq != null);
+                if (tq != null) {
+                    addTile(tx, tz, TileState.LOADED, tq);  // reuse recently detached tile
+                    newTile = true;
+                } else {
+                    queueLoad(tx, tz, false);   // no tile loaded so load it
+                }
+            }
         }
 
         @Override
         public void run() {
-            threadState = true;
             tLog.log(Level.FINE, "Terrain Thread Started\n");
             while (threadState) {
-                int cx = (int) camera.getLocation().x / tileWSize;
-                int cz = (int) camera.getLocation().z / tileWSize;
-                long time = System.nanoTime();
+                int cx = camCellX;
+                int cz = camCellZ;
                 if (firstRun | cx != gridCenterX | cz != gridCenterZ) {            // check if camera changed cells
                     gridCenterX = cx;
                     gridCenterZ = cz;
-                    // iterrate tileSet to see if any tiles are now outside range
-                    Iterator it = tileFlag.keySet().iterator();
-                    while (it.hasNext()) {
-                        int key = (Integer) it.next();
-                        int kx = key % maxTiles;
-                        int kz = key / maxTiles;
-                        if (kx < (gridCenterX - (gridSize / 2)) | kx > (gridCenterX + (gridSize / 2))) {
-                            tileFlag.replace(key, 4);
-                            newTile = true;
+                    firstRun = false;
+                }
+                applyObservers();
+                // check every tracked tile against the grid and prefetch area
+                int n = tileRegistry.copyTo(schedTiles);
+                if (n > schedTiles.length) {
+                    schedTiles = new Tile[n * 2];
+                    n = tileRegistry.copyTo(schedTiles);
+                }
+                int ahead = 0;      // tiles held or loading ahead of the grid
+                for (int i = 0; i < n; i++) {
+                    Tile t = schedTiles[i];
+                    boolean wanted = refs.get(t.key) > 0;
+                    t.wanted = wanted;
+                    boolean early = !wanted && inPrefetch(t.x, t.z);
+                    TileState state = t.getState();
+                    if (state == TileState.QUEUED) {
+                        TileLoadTask task = (TileLoadTask) t.load;
+                        if (task.isCancelled() | (!wanted & !early && task.cancel(false))) {
+                            loaderPool.remove(task);    // out of range, drop the load
+                            tileRegistry.remove(t);
+                        } else {
+                            if (wanted) {
+                                task.prefetch = false;  // grid caught up with it
+                            } else {
+                                ahead++;
+                            }
+                            if (loaderPool.remove(task)) {  // reorder if still waiting
+                                task.priority = tilePriority(t.x, t.z);
+                                loaderPool.getQueue().offer(task);
+                            }
                         }
-                        if (kz < (gridCenterZ - (gridSize / 2)) | kz > (gridCenterZ + (gridSize / 2))) {
-                            tileFlag.replace(key, 4);
-                            newTile = true;
+                    } else if (state == TileState.PREFETCHED) {
+                        if (wanted) {
+                            if (t.setState(TileState.PREFETCHED, TileState.LOADED)) {
+                                newTile = true;     // already prefetched, attach it
+                            }
+                        } else if (!early) {
+                            cacheTile(t);   // no longer expected
+                            tileRegistry.remove(t);
+                        } else {
+                            ahead++;
+                        }
+                    } else if ((state == TileState.LOADED | state == TileState.ATTACHED) & !wanted) {
+                        if (t.setState(state, TileState.DETACHING)) {
+                            newTile = true;         // now outside range
+                        }
+                    }
+                }
+                // Load tiles newly wanted, or every wanted tile if one was lost
+                if (lostTile) {
+                    lostTile = false;
+                    for (int i = 0; i < refs.capacity(); i++) {
+                        int tk = refs.keyAt(i);
+                        if (tk >= 0) {
+                            requireTile(tk);
                         }
                     }
-                    // Scan grid area for missing tiles
-                    for (int z = 0; z < gridSize; z++) {
-                        for (int x = 0; x < gridSize; x++) {
-                            int tx = x - (gridSize / 2) + gridCenterX;  // get tile absolute position
-                            int tz = z - (gridSize / 2) + gridCenterZ;
-                            if (tx >= 0 & tx < numTilesX & tz >= 0 & tz < numTilesZ) {    // OOB check
+                } else {
+                    for (int i = 0; i < pendingCount; i++) {
+                        requireTile(pending[i]);
+                    }
+                }
+                pendingCount = 0;
+                // Queue loads for the window the camera is heading into
+                TileObserver cam = camObserver;
+                if (prefetchDistance > 0 & cam != null) {
+                    int budget = maxPrefetchTiles() - ahead;
+                    int[] spans = gridWindow.spans(cam.sector);
+                    int radius = spans.length / 4;
+                    for (int z = -radius; z <= radius & budget > 0; z++) {
+                        int x0 = spans[(z + radius) * 2];
+                        int x1 = spans[(z + radius) * 2 + 1];
+                        for (int x = x0; x <= x1 & budget > 0; x++) {
+                            int tx = x + prefetchCellX;
+                            int tz = z + prefetchCellZ;
+                            if (tx >= 0 & tx < numTilesX & tz >= 0 & tz < numTilesZ) {
                                 int tk = tx + (tz * maxTiles);
-                                if (!tileSet.containsKey(tk)) {         // no tile loaded so...
-                                    tileSet.put(tk, LoadTile(tx, tz));  // Load it
-                                    tileFlag.put(tk, 2);                // Flag for attaching
-                                    newTile = true;
+                                if (refs.get(tk) == 0 && tileRegistry.get(tk) == null) {
+                                    TerrainQuad tq = tileCache.take(tk);
+                                    metrics.cacheLookup(tq != null);
+                                    if (tq != null) {
+                                        addTile(tx, tz, TileState.PREFETCHED, tq);
+                                    } else {
+                                        queueLoad(tx, tz, true);
+                                    }
+                                    budget--;
                                 }
                             }
                         }
                     }
-                    firstRun = false;
-                }/*
-                time = System.nanoTime() - time;
-                time /= 1000000;
-                if (time > 90) {
-                    time = 90;
                 }
-                try {
-                    sleep(100 - time);
-                } catch (InterruptedException ex) {
-                    tLog.log(Level.SEVERE, null, ex);
-                    threadState = false;
-                }*/
+                if (memoryBudget > 0 | shed.size() > 0) {
+                    keepInBudget();
+                }
+                // sleep until the camera or an observer enters a new cell or the poll interval passes
+                synchronized (schedLock) {
+                    if (threadState & !rescan) {
+                        try {
+                            schedLock.wait(pollInterval);
+                        } catch (InterruptedException ex) {
+                            threadState = false;
+                        }
+                    }
+                    rescan = false;
+                }
             }
             // thread has been stopped so flag all tiles for removal
-            Iterator it = tileFlag.keySet().iterator();
-            while (it.hasNext()) {
-                int tk = (Integer) it.next();
-                tileFlag.replace(tk, 4);
+            int n = tileRegistry.copyTo(schedTiles);
+            for (int i = 0; i < Math.min(n, schedTiles.length); i++) {
+                Tile t = schedTiles[i];
+                if (!t.setState(TileState.LOADED, TileState.DETACHING)) {
+                    t.setState(TileState.ATTACHED, TileState.DETACHING);
+                }
+            }
+        }
+
+        /**
+         * Hold the tiles to the memory budget. Every tile held or wanted is
+         * ranked, wanted tiles nearest an observer first then prefetched
+         * tiles, and the budget handed out down the ranking. Tiles past the
+         * end of the budget are shed, wanted tiles shed are loaded again as
+         * the ranking reaches them, and the detached tile cache is left what
+         * remains. Costs one pass over the registry while everything fits.
+         */
+        private void keepInBudget() {
+            long budget = memoryBudget;
+            long estimate = tileEstimate();
+            int n = tileRegistry.copyTo(schedTiles);
+            if (n > schedTiles.length) {
+                schedTiles = new Tile[n * 2];
+                n = tileRegistry.copyTo(schedTiles);
+            }
+            long total = 0;
+            for (int i = 0; i < n; i++) {
+                total += heldBytes(schedTiles[i], estimate);
+            }
+            int nShed = 0;
+            for (int i = 0; i < shed.capacity(); i++) {
+                int tk = shed.keyAt(i);
+                if (tk >= 0) {
+                    if (nShed == shedKeys.length) {
+                        shedKeys = Arrays.copyOf(shedKeys, nShed * 2);
+                    }
+                    shedKeys[nShed++] = tk;
+                }
+            }
+            if (nShed == 0 && total <= budget) {
+                tileCache.trim(budget - total);
+                return;
+            }
+            // rank on the float bits of the priority, which order as the
+            // floats do for positive values, prefetched tiles after the rest
+            if (ranked.length < n + nShed) {
+                ranked = new long[(n + nShed) * 2];
+            }
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                Tile t = schedTiles[i];
+                if (heldBytes(t, estimate) > 0) {
+                    ranked[count++] = rank(t.x, t.z, !t.wanted, i);
+                }
+            }
+            for (int i = 0; i < nShed; i++) {
+                ranked[count++] = rank(shedKeys[i] % maxTiles, shedKeys[i] / maxTiles, false, n + i);
+            }
+            Arrays.sort(ranked, 0, count);
+            long used = 0;
+            boolean full = false;
+            for (int i = 0; i < count; i++) {
+                int at = (int) (ranked[i] & Integer.MAX_VALUE);
+                boolean under = (ranked[i] >>> 31) == 0;  // tile an observer is in
+                if (at < n) {
+                    Tile t = schedTiles[at];
+                    long bytes = heldBytes(t, estimate);
+                    full |= budget > 0 & used + bytes > budget & !under;
+                    if (full) {
+                        shedTile(t);
+                    } else {
+                        used += bytes;
+                    }
+                } else {
+                    int tk = shedKeys[at - n];
+                    full |= budget > 0 & used + estimate > budget & !under;
+                    if (!full && tileRegistry.get(tk) == null) {
+                        shed.add(tk, -1);           // room for it again
+                        requireTile(tk);
+                        used += estimate;
+                    }
+                }
+            }
+            if (budget > 0) {
+                tileCache.trim(Math.max(0, budget - used));
+            }
+        }
+
+        /**
+         * Bytes a tile holds or will hold, 0 for tiles on their way out
+         */
+        private long heldBytes(Tile t, long estimate) {
+            switch (t.getState()) {
+                case QUEUED:
+                    return estimate;
+                case PREFETCHED:
+                case LOADED:
+                case ATTACHED:
+                    return Math.max(t.heapBytes + t.directBytes, 1);
+                default:
+                    return 0;
+            }
+        }
+
+        /**
+         * Sort key of a tile for keepInBudget, the priority bits above the
+         * index of the tile. The tile an observer is in ranks 0.
+         */
+        private long rank(int tileX, int tileZ, boolean ahead, int index) {
+            long bits = 0;
+            if (!ahead & !underObserver(tileX, tileZ)) {
+                bits = Float.floatToIntBits(Math.max(tilePriority(tileX, tileZ), Float.MIN_VALUE));
+            } else if (ahead) {
+                bits = 1L << 31 | Float.floatToIntBits(Math.max(tilePriority(tileX, tileZ), 0f));
+            }
+            return bits << 31 | index;
+        }
+
+        private boolean underObserver(int tileX, int tileZ) {
+            for (TileObserver o : observers) {
+                if (o.cellX == tileX & o.cellZ == tileZ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Drop a tile to free its memory. Loads are cancelled, tiles in the
+         * scene detached, and nothing is put in the detached tile cache. A
+         * wanted tile is remembered so it loads again when there is room.
+         */
+        private void shedTile(Tile t) {
+            t.shed = true;
+            TileState state = t.getState();
+            if (state == TileState.QUEUED) {
+                t.load.cancel(false);
+                loaderPool.remove((TileLoadTask) t.load);
+                tileRegistry.remove(t);
+            } else if (state == TileState.PREFETCHED) {
+                tileRegistry.remove(t);
+            } else if ((state == TileState.LOADED | state == TileState.ATTACHED)
+                    && t.setState(state, TileState.DETACHING)) {
+                newTile = true;
+            }
+            if (t.wanted && shed.get(t.key) == 0) {
+                shed.add(t.key, 1);
+            }
+            metrics.tileShed();
+        }
+
+        /**
+         * Start tracking a tile that is already loaded
+         *
+         * @param tileX - Tile X location
+         * @param tileZ - Tile Z location
+         * @param state - TileState to start in
+         * @param tq - TerrainQuad of the tile
+         */
+        private void addTile(int tileX, int tileZ, TileState state, TerrainQuad tq) {
+            TileHeights heights = new TileHeights(tq);
+            Tile t = tileRegistry.add(tileX, tileZ, state, tq);
+            if (t != null) {
+                t.heights = heights;
+                t.wanted = state != TileState.PREFETCHED;
+                measureTile(t);
+            }
+        }
+
+        /**
+         * Start tracking a tile and queue its load on the loader pool
+         *
+         * @param tileX - Tile X location
+         * @param tileZ - Tile Z location
+         * @param ahead - true if loading ahead of the grid
+         */
+        private void queueLoad(int tileX, int tileZ, boolean ahead) {
+            Tile t = tileRegistry.add(tileX, tileZ, TileState.QUEUED, null);
+            if (t != null) {
+                t.wanted = !ahead;
+                TileLoadTask task = new TileLoadTask(t, ahead);
+                task.priority = tilePriority(tileX, tileZ);
+                t.load = task;
+                loaderPool.execute(task);
+            }
+        }
+    }
+
+    /**
+     * A single tile load run on the loader pool. When the load completes the
+     * tile is flagged for attaching, or held as prefetched, unless the camera
+     * has moved away in the meantime. Tasks are ordered on the pool queue by
+     * priority so tiles nearest the camera load first, and grid tiles always
+     * load before prefetched ones.
+     */
+    private class TileLoadTask extends FutureTask<TerrainQuad> implements Comparable<TileLoadTask> {
+
+        private final Tile tile;
+        private final long queuedAt = System.nanoTime();
+        private volatile long startedAt;
+        private volatile float priority;
+        private volatile boolean prefetch;  // true if loading ahead of the grid
+
+        TileLoadTask(final Tile t, boolean ahead) {
+            super(new Callable<TerrainQuad>() {
+                @Override
+                public TerrainQuad call() throws IOException {
+                    if (headless) {
+                        TileHeights heights = loadHeights(t.x, t.z);   // no quad, just heights
+                        t.heights = heights != null ? heights : flatHeights();
+                        return null;
+                    }
+                    TerrainQuad tq = LoadTile(t.x, t.z);
+                    if (tq == null) {
+                        throw new IOException("Tile failed to load: " + t.x + "," + t.z);
+                    }
+                    prepareLod(tq);
+                    return tq;
+                }
+            });
+            this.tile = t;
+            this.prefetch = ahead;
+        }
+
+        @Override
+        public void run() {
+            if (!tile.wanted && !inPrefetch(tile.x, tile.z)) {
+                cancel(false);      // camera moved on before we got started
+                return;
+            }
+            startedAt = System.nanoTime();
+            super.run();
+        }
+
+        @Override
+        public int compareTo(TileLoadTask other) {
+            if (prefetch != other.prefetch) {
+                return prefetch ? 1 : -1;
+            }
+            return Float.compare(priority, other.priority);
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled() | !threadState) {
+                return;     // the tiler thread drops cancelled tiles
+            }
+            try {
+                TerrainQuad tq = get();
+                long now = System.nanoTime();
+                metrics.tileLoaded(now - queuedAt, now - startedAt);
+                if (!headless) {
+                    tile.heights = tq.getName().startsWith("OOB") ? flatHeights() : new TileHeights(tq);
+                    tile.quad = tq;
+                }
+                measureTile(tile);
+                if (tileRegistry.get(tile.key) != tile) {
+                    cacheTile(tile);            // dropped while loading
+                } else if (tile.wanted) {
+                    if (tile.setState(TileState.QUEUED, TileState.LOADED)) {
+                        newTile = true;                 // Flag for attaching
+                    }
+                } else if (inPrefetch(tile.x, tile.z)) {
+                    tile.setState(TileState.QUEUED, TileState.PREFETCHED);  // hold until the grid reaches it
+                    wakeScheduler();
+                } else if (tileRegistry.remove(tile)) {
+                    cacheTile(tile);            // camera moved away while loading
+                }
+            } catch (InterruptedException | ExecutionException ex) {
+                tLog.log(Level.WARNING, "Error loading tile!{0}", ex.getMessage());
+                if (tileRegistry.remove(tile) & tile.wanted) {
+                    lostTile = true;            // try it again on the next scan
+                }
             }
         }
     }
@@ -949,6 +2862,7 @@ public class TerrainTiler extends Node implements Terrain, NeighbourFinder {
 
         private boolean isInit = false;
         private boolean isEnable = false;
+        private Tile[] frameTiles = new Tile[128];  // reused each frame so updates do not allocate
 
         @Override
         public void initialize(AppStateManager stateManager, Application app) {
@@ -969,26 +2883,28 @@ public class TerrainTiler extends Node implements Terrain, NeighbourFinder {
         @Override
         public void setEnabled(boolean state) {
             if (!isEnable & state) {
+                if (tThread.getState() != Thread.State.NEW) {
+                    tThread = new terrainThread();  // threads can not be restarted
+                }
+                startLoaders();
+                threadState = true;
                 tThread.start();
                 isEnable = true;
             } else if (isEnable & !state) {
-                threadState = false;
+                stopScheduler();
+                stopLoaders();
                 // detach and remove all tiles
-                Iterator it = tileSet.keySet().iterator();
-                while (it.hasNext()) {
-                    int key = (Integer) it.next();
-                    terrainMLOD.removeTerrain(tileSet.get(key));
-                    tileSet.get(key).setNeighbourFinder(null);
-                    TerrainTiler.this.detachChild(tileSet.get(key));
-                    tileSet.get(key).detachAllChildren();
-                    tileSet.remove(key);
-                    tileFlag.remove(key);
-                }
-                tileSet.clear();
-                tileFlag.clear();
-                while (tThread.isAlive()){
-                    // wait for thread to stop.
+                for (Tile t : tileRegistry.toArray()) {
+                    TerrainQuad tq = t.quad;
+                    if (tq != null && t.getState().inScene()) {
+                        terrainMLOD.removeTerrain(tq);
+                        tq.setNeighbourFinder(null);
+                        TerrainTiler.this.detachChild(tq);
+                        tq.detachAllChildren();
+                    }
                 }
+                tileRegistry.clear();
+                publishSnapshot();
                 TerrainTiler.this.detachAllChildren();
                 isEnable = false;
             }
@@ -1011,55 +2927,146 @@ public class TerrainTiler extends Node implements Terrain, NeighbourFinder {
 
         @Override
         public void update(float tpf) {
+            long frameStart = System.nanoTime();
+            if (isEnable & camera != null) {
+                trackVelocity(tpf);
+                trackCamera();
+                // track camera cell here so the tiler thread only wakes on a change
+                int cx = (int) camera.getLocation().x / tileWSize;
+                int cz = (int) camera.getLocation().z / tileWSize;
+                if (cx != camCellX | cz != camCellZ) {
+                    camCellX = cx;
+                    camCellZ = cz;
+                    wakeScheduler();
+                }
+            }
+            if (isEnable) {
+                trackObservers();
+            }
+            if (lodCamerasChanged & terrainMLOD != null) {
+                lodCamerasChanged = false;
+                List<Camera> cams = new ArrayList<>();  // LOD from every camera observer
+                for (TileObserver o : observers) {
+                    if (o.camera != null) {
+                        cams.add(o.camera);
+                    }
+                }
+                if (!cams.isEmpty()) {
+                    terrainMLOD.setCameras(cams);
+                }
+            }
             if (isEnable & newTile) {
-                // iterrate list and check if needs attaching or removing.
-                Iterator it = tileFlag.keySet().iterator();
-                boolean once = true;    // only one remove/attach per update.
-                while (it.hasNext() & once) {
-                    int key = (Integer) it.next();
-                    if (tileFlag.get(key) == 2) {
-                        // flagged to attach
-                        TerrainTiler.this.attachChild(tileSet.get(key));
-                        tileSet.get(key).setNeighbourFinder(TerrainTiler.this);
-                        terrainMLOD.addTerrain(tileSet.get(key));
-                        // run the actionHooks.tileAttached
-                        for (TerrainTilerAction hooks : actionHooks) {
-                            hooks.tileAttached(tileSet.get(key).getLocalTranslation(), tileSet.get(key));
+                // walk the registry and attach or remove as many as fit in the frame budget.
+                long start = System.nanoTime();
+                long budget = (long) (updateBudget * 1000000f);
+                boolean attached = false;
+                boolean detached = false;
+                boolean once = true;    // always do at least one remove/attach per update.
+                int n = tileRegistry.copyTo(frameTiles);
+                if (n > frameTiles.length) {
+                    frameTiles = new Tile[n * 2];
+                    n = tileRegistry.copyTo(frameTiles);
+                }
+                for (int i = 0; i < n & (once | System.nanoTime() - start < budget); i++) {
+                    Tile t = frameTiles[i];
+                    TerrainQuad tq = t.quad;
+                    TileState state = t.getState();
+                    if (state == TileState.LOADED && t.setState(TileState.LOADED, TileState.ATTACHED)) {
+                        // flagged to attach, headless tiles just come into use
+                        if (!headless) {
+                            TerrainTiler.this.attachChild(tq);
+                            tq.setNeighbourFinder(TerrainTiler.this);
+                            terrainMLOD.addTerrain(tq);
+                            // run the actionHooks.tileAttached
+                            for (TerrainTilerAction hooks : actionHooks) {
+                                hooks.tileAttached(tq.getLocalTranslation(), tq);
+                            }
                         }
-                        tileFlag.replace(key, 3);
-                        terrainMLOD.forceUpdate();
+                        tileChanged(t);
+                        attached = true;
                         once = false;
-                    } else if (tileFlag.get(key) == 4) {
+                    } else if (state == TileState.DETACHING && t.setState(TileState.DETACHING, TileState.DETACHED)) {
                         // flagged for removal
-                        terrainMLOD.removeTerrain(tileSet.get(key));
-                        tileSet.get(key).setNeighbourFinder(null);
-                        TerrainTiler.this.detachChild(tileSet.get(key));
-                        // run the actionHooks.tileDetached
-                        for (TerrainTilerAction hooks : actionHooks) {
-                            hooks.tileDetached(tileSet.get(key).getLocalTranslation(), tileSet.get(key));
+                        if (!headless) {
+                            terrainMLOD.removeTerrain(tq);
+                            tq.setNeighbourFinder(null);
+                            TerrainTiler.this.detachChild(tq);
+                            // run the actionHooks.tileDetached
+                            for (TerrainTilerAction hooks : actionHooks) {
+                                hooks.tileDetached(tq.getLocalTranslation(), tq);
+                            }
                         }
-                        tileFlag.replace(key, 5); // Flag for deletion
+                        tileChanged(t);
+                        detached = true;
                         once = false;
-                    } else if (tileFlag.get(key) == 5) {
-                        // flagged for deletion
-                        tileSet.remove(key);
-                        tileFlag.remove(key);
+                    } else if (state == TileState.DETACHED) {
+                        // flagged for deletion, keep it cached in case we come back
+                        if (tileRegistry.remove(t)) {
+                            cacheTile(t);
+                        }
                         once = false;
                     }
                 }
-                if (!once) {    // new tile attached/removed so reset neighbor caches
-                    it = tileFlag.keySet().iterator();
-                    while (it.hasNext()) {
-                        int key = (Integer) it.next();
-                        if (tileFlag.get(key) == 3) {
-                            tileSet.get(key).resetCachedNeighbours();
-                        }
+                if (!once) {
+                    if (attached & !headless) {
+                        terrainMLOD.forceUpdate();
+                    }
+                    if (attached | detached) {
+                        publishSnapshot();  // let queries see the change
                     }
                 } else {
                     // nothing changed so no new tiles to load
                     newTile = false;
                 }
             }
+            FarField far = farField;
+            if (isEnable & far != null & camera != null) {
+                // fill in the far field around the grid, in its own slice of the budget
+                long deadline = System.nanoTime() + (long) (updateBudget * 1000000f);
+                far.update(camera.getLocation().x, camera.getLocation().z, snapshot.get(), deadline);
+            }
+            if (isEnable) {
+                metrics.frame(System.nanoTime() - frameStart);
+            }
+        }
+
+        /**
+         * A tile was attached or removed so update its neighbour links and
+         * reset the neighbour caches of it and the tiles linked to it. Only
+         * the four neighbours are touched however large the grid is.
+         *
+         * @param t - Tile that changed
+         */
+        private void tileChanged(Tile t) {
+            if (t.getState() == TileState.ATTACHED) {
+                tileRegistry.link(t);
+                resetNeighbours(t);
+                resetNeighbours(t.right);
+                resetNeighbours(t.left);
+                resetNeighbours(t.down);
+                resetNeighbours(t.top);
+            } else {
+                Tile right = t.right;
+                Tile left = t.left;
+                Tile down = t.down;
+                Tile top = t.top;
+                tileRegistry.unlink(t);
+                resetNeighbours(right);
+                resetNeighbours(left);
+                resetNeighbours(down);
+                resetNeighbours(top);
+            }
+        }
+
+        /**
+         * Reset the cached neighbours of a linked tile
+         *
+         * @param t - Tile or null
+         */
+        private void resetNeighbours(Tile t) {
+            if (t != null && t.quad != null) {
+                t.quad.resetCachedNeighbours();
+            }
         }
 
         @Override
@@ -1073,7 +3080,7 @@ public class TerrainTiler extends Node implements Terrain, NeighbourFinder {
 
         @Override
         public void cleanup() {
-            setEnabled(false);
+            close();
             isInit = false;
         }
     }
@@ -0,0 +1,685 @@
+/*
+ *
+ */
+package com.radans.TerrainTiler;
+
+import com.jme3.asset.DesktopAssetManager;
+import com.jme3.asset.TextureKey;
+import com.jme3.asset.plugins.FileLocator;
+import com.jme3.asset.plugins.ClasspathLocator;
+import com.jme3.export.binary.BinaryExporter;
+import com.jme3.material.Material;
+import com.jme3.material.plugins.J3MLoader;
+import com.jme3.math.ColorRGBA;
+import com.jme3.shader.plugins.GLSLLoader;
+import com.jme3.terrain.geomipmap.TerrainQuad;
+import com.jme3.terrain.heightmap.ImageBasedHeightMap;
+import com.jme3.texture.Image;
+import com.jme3.texture.plugins.AWTLoader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Headless tool that bakes a large source heightmap into tiles and writes
+ * the tiledTerrain.map file for them. Tiles are cut in parallel, each being
+ * tileSize + 1 samples a side with the edges shared with its neighbours.
+ * The lowest and highest height of each tile is recorded in the pack index,
+ * or for raw and j3o tiles in a TileIndex alongside the map file. A coarse
+ * TileOverview of the whole map is written for drawing the far field.
+ * Tiles written as j3o have their LOD entropies generated so they do not
+ * need computing at load time. j3o tiles get a plain Unshaded material, as
+ * models without one can not be loaded through the asset manager.
+ *
+ * Usage: TileBaker -in source -out dir [options]
+ *      -in file        source heightmap, .png or raw unsigned 16 bit
+ *      -width n        raw source width in samples
+ *      -height n       raw source height in samples
+ *      -bigendian      raw source is big endian, default little endian
+ *      -heightScale f  multiplier from source value to height, default 1
+ *      -tileSize n     tile size 256, 512, 1024 or 2048, default 256
+ *      -tileScale n    world scale of each tile, default 1
+ *      -format f       pack, pack16, packj3o, raw, raw16 or j3o, default pack
+ *      -threads n      number of worker threads, default all cores
+ *
+ * The map always has at least 16 tiles a side as the tiler requires, tiles
+ * beyond the source are left out of packs and j3o trees, or are flat in raw
+ * files.
+ */
+public class TileBaker {
+
+    private static final Logger bLog = Logger.getLogger(TileBaker.class.getCanonicalName());
+    private final HeightSource source;
+    private final File outDir;
+    private final int tileSize;
+    private final int tileScale;
+    private final String format;
+    private final int threads;
+    private final int numTilesX;                // tiles in the map
+    private final int numTilesZ;
+    private final int dataTilesX;               // tiles covered by the source
+    private final int dataTilesZ;
+    private Material tileMaterial;              // material saved with j3o tiles
+
+    /**
+     * Create a baker
+     *
+     * @param src - HeightSource to cut up
+     * @param out - directory to write the tiles and map file to
+     * @param tSize - tile size
+     * @param tScale - world scale of each tile
+     * @param fmt - output format, see class description
+     * @param nThreads - number of worker threads
+     */
+    public TileBaker(HeightSource src, File out, int tSize, int tScale, String fmt, int nThreads) {
+        this.source = src;
+        this.outDir = out;
+        this.tileSize = tSize;
+        this.tileScale = tScale;
+        this.format = fmt;
+        this.threads = Math.max(1, nThreads);
+        this.dataTilesX = Math.max(1, (src.getWidth() - 2) / tSize + 1);
+        this.dataTilesZ = Math.max(1, (src.getHeight() - 2) / tSize + 1);
+        this.numTilesX = mapTiles(dataTilesX);
+        this.numTilesZ = mapTiles(dataTilesZ);
+    }
+
+    /**
+     * Number of map tiles needed to hold the given tiles, a power of 2 of at
+     * least 16.
+     */
+    private static int mapTiles(int tiles) {
+        int n = 16;
+        while (n < tiles) {
+            n *= 2;
+        }
+        return n;
+    }
+
+    public int getNumTilesX() {
+        return numTilesX;
+    }
+
+    public int getNumTilesZ() {
+        return numTilesZ;
+    }
+
+    /**
+     * Bake all the tiles and write the map file. Only a few tiles a thread
+     * are queued at a time, so the heap holds the same whatever the size of
+     * the map. The source is closed once baking ends.
+     *
+     * @return File of the written map file
+     * @throws IOException if the source can not be read or output written
+     */
+    public File bake() throws IOException {
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            throw new IOException("Can not create output directory " + outDir);
+        }
+        String tileType;
+        String fileName;
+        try (HeightSource src = source;
+                final TileWriter writer = createWriter();
+                final TileIndex.Writer index = writer.tileType().equals("pack") ? null
+                        : new TileIndex.Writer(new File(outDir, "tiledTerrain.idx"), numTilesX, numTilesZ, tileSize);
+                final TileOverview.Writer overview = new TileOverview.Writer(new File(outDir, "tiledTerrain.ovr"),
+                        numTilesX, numTilesZ, tileSize)) {
+            tileType = writer.tileType();
+            fileName = writer.fileName();
+            if (index != null && tileType.startsWith("raw")) {
+                for (int z = 0; z < numTilesZ; z++) {
+                    for (int x = 0; x < numTilesX; x++) {
+                        index.writeTile(x, z, 0f, 0f);      // raw files hold flat tiles past the source
+                    }
+                }
+            }
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            CompletionService<Void> jobs = new ExecutorCompletionService<>(pool);
+            final AtomicBoolean stop = new AtomicBoolean();
+            final AtomicInteger done = new AtomicInteger();
+            final int total = dataTilesX * dataTilesZ;
+            int window = threads * 4;
+            int queued = 0;
+            try {
+                for (int z = 0; z < dataTilesZ; z++) {
+                    for (int x = 0; x < dataTilesX; x++) {
+                        if (queued == window) {
+                            jobs.take().get();
+                            queued--;
+                        }
+                        final int tx = x;
+                        final int tz = z;
+                        jobs.submit(new Callable<Void>() {
+                            @Override
+                            public Void call() throws IOException {
+                                if (stop.get()) {
+                                    return null;        // baking failed, skip the tiles not started
+                                }
+                                float[] heights = new float[(tileSize + 1) * (tileSize + 1)];
+                                src.read(tx * tileSize, tz * tileSize, tileSize + 1, heights);
+                                writer.write(tx, tz, heights);
+                                overview.writeTile(tx, tz, heights);
+                                if (index != null) {
+                                    float min = Float.MAX_VALUE;
+                                    float max = -Float.MAX_VALUE;
+                                    for (float h : heights) {
+                                        min = Math.min(min, h);
+                                        max = Math.max(max, h);
+                                    }
+                                    index.writeTile(tx, tz, min, max);
+                                }
+                                int n = done.incrementAndGet();
+                                if (n % 256 == 0 | n == total) {
+                                    bLog.log(Level.INFO, "Baked {0} of {1} tiles", new Object[]{n, total});
+                                }
+                                return null;
+                            }
+                        });
+                        queued++;
+                    }
+                }
+                for (; queued > 0; queued--) {
+                    jobs.take().get();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Baking interrupted", ex);
+            } catch (ExecutionException ex) {
+                throw new IOException("Error baking tile", ex.getCause());
+            } finally {
+                stop.set(true);
+                finish(pool);
+            }
+        }
+        return writeMapFile(tileType, fileName, tileType.equals("pack") ? null : "tiledTerrain.idx");
+    }
+
+    /**
+     * Wait for the tiles still being baked to be written, so the output is
+     * not closed under them. Workers are not interrupted, as that would close
+     * the channels they write to.
+     */
+    private static void finish(ExecutorService pool) {
+        pool.shutdown();
+        boolean interrupted = Thread.interrupted();
+        while (!pool.isTerminated()) {
+            try {
+                pool.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write the tiledTerrain.map file describing the baked tiles
+     */
+    private File writeMapFile(String tileType, String fileName, String indexName) throws IOException {
+        File mapFile = new File(outDir, "tiledTerrain.map");
+        try (PrintWriter out = new PrintWriter(mapFile, "UTF-8")) {
+            out.println("tiledTerrain : 1");
+            out.println(String.format("%-10s: %s", "useJars", "false"));
+            out.println(String.format("%-10s: %d", "numTilesX", numTilesX));
+            out.println(String.format("%-10s: %d", "numTilesZ", numTilesZ));
+            out.println(String.format("%-10s: %d", "tileSize", tileSize));
+            out.println(String.format("%-10s: %d", "tileScale", tileScale));
+            out.println(String.format("%-10s: %s", "tileType", tileType));
+            if (fileName != null) {
+                out.println(String.format("%-10s: %s", "tileFile", fileName));
+            }
+            if (indexName != null) {
+                out.println(String.format("%-10s: %s", "tileIndex", indexName));
+            }
+            out.println(String.format("%-10s: %s", "tileOverview", "tiledTerrain.ovr"));
+        }
+        return mapFile;
+    }
+
+    /**
+     * Build a tile as a TerrainQuad with its LOD entropies generated and save
+     * it as j3o.
+     */
+    private byte[] j3oBytes(int tileX, int tileZ, float[] heights) throws IOException {
+        int pSize = tileSize / 4;
+        String tileName = String.format("TILE-%02d%02d%02d%02d",
+                (tileX / 64), (tileX % 64), (tileZ / 64), (tileZ % 64));
+        TerrainQuad tq = new TerrainQuad(tileName, pSize + 1, tileSize + 1, heights);
+        tq.setMaterial(getTileMaterial());
+        tq.generateEntropy(null);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryExporter.getInstance().save(tq, bytes);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Get the material saved with j3o tiles, created on first use
+     */
+    private synchronized Material getTileMaterial() {
+        if (tileMaterial == null) {
+            DesktopAssetManager am = new DesktopAssetManager();
+            am.registerLocator("/", ClasspathLocator.class);
+            am.registerLoader(J3MLoader.class, "j3md");
+            am.registerLoader(GLSLLoader.class, "vert", "frag", "glsl", "glsllib");
+            tileMaterial = new Material(am, "Common/MatDefs/Misc/Unshaded.j3md");
+            tileMaterial.setColor("Color", ColorRGBA.Gray);
+        }
+        return tileMaterial;
+    }
+
+    private TileWriter createWriter() throws IOException {
+        switch (format) {
+            case "pack":
+                return new PackWriter(TilePack.PAYLOAD_FLOAT);
+            case "pack16":
+                return new PackWriter(TilePack.PAYLOAD_HALF);
+            case "packj3o":
+                return new PackWriter(TilePack.PAYLOAD_J3O);
+            case "raw":
+                return new RawWriter(false);
+            case "raw16":
+                return new RawWriter(true);
+            case "j3o":
+                return new J3oWriter();
+            default:
+                throw new IOException("Unknown tile format " + format);
+        }
+    }
+
+    /**
+     * Destination for baked tiles, write may be called from many threads.
+     */
+    private interface TileWriter extends Closeable {
+
+        void write(int tileX, int tileZ, float[] heights) throws IOException;
+
+        String tileType();
+
+        String fileName();
+    }
+
+    private class PackWriter implements TileWriter {
+
+        private final TilePack.Writer pack;
+        private final int payload;
+
+        PackWriter(int payloadType) throws IOException {
+            this.payload = payloadType;
+            this.pack = new TilePack.Writer(new File(outDir, fileName()), numTilesX, numTilesZ, tileSize,
+                    payloadType, TilePack.COMPRESS_DEFLATE);
+        }
+
+        @Override
+        public void write(int tileX, int tileZ, float[] heights) throws IOException {
+            float min = Float.MAX_VALUE;
+            float max = -Float.MAX_VALUE;
+            for (float h : heights) {
+                min = Math.min(min, h);
+                max = Math.max(max, h);
+            }
+            byte[] raw = payload == TilePack.PAYLOAD_J3O ? j3oBytes(tileX, tileZ, heights)
+                    : TilePack.Writer.heightBytes(heights, payload);
+            pack.writeTile(tileX, tileZ, pack.encode(raw), raw.length, min, max);
+        }
+
+        @Override
+        public void close() throws IOException {
+            pack.close();
+        }
+
+        @Override
+        public String tileType() {
+            return "pack";
+        }
+
+        @Override
+        public String fileName() {
+            return "tiledTerrain.pack";
+        }
+    }
+
+    private class RawWriter implements TileWriter {
+
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final boolean half;
+        private final long tileBytes;
+
+        RawWriter(boolean halfFloat) throws IOException {
+            this.half = halfFloat;
+            this.tileBytes = (long) (tileSize + 1) * (tileSize + 1) * (halfFloat ? 2 : 4);
+            this.file = new RandomAccessFile(new File(outDir, fileName()), "rw");
+            this.file.setLength(0);
+            this.file.setLength(tileBytes * numTilesX * numTilesZ);     // missing tiles read as flat
+            this.channel = file.getChannel();
+        }
+
+        @Override
+        public void write(int tileX, int tileZ, float[] heights) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(TilePack.Writer.heightBytes(heights,
+                    half ? TilePack.PAYLOAD_HALF : TilePack.PAYLOAD_FLOAT));
+            long offset = (tileX + (long) tileZ * numTilesX) * tileBytes;
+            while (buf.hasRemaining()) {
+                channel.write(buf, offset + buf.position());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            file.close();
+        }
+
+        @Override
+        public String tileType() {
+            return half ? "raw16" : "raw";
+        }
+
+        @Override
+        public String fileName() {
+            return "tiledTerrain.raw";
+        }
+    }
+
+    private class J3oWriter implements TileWriter {
+
+        @Override
+        public void write(int tileX, int tileZ, float[] heights) throws IOException {
+            File dir = new File(outDir, String.format("DIR-%02d%02d", (tileX / 64), (tileZ / 64)));
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("Can not create " + dir);
+            }
+            File tile = new File(dir, String.format("TILE-%02d%02d.j3o", (tileX % 64), (tileZ % 64)));
+            try (FileOutputStream out = new FileOutputStream(tile)) {
+                out.write(j3oBytes(tileX, tileZ, heights));
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String tileType() {
+            return "terrain";
+        }
+
+        @Override
+        public String fileName() {
+            return null;
+        }
+    }
+
+    /**
+     * A source of heights to bake, read from many threads at once. Samples
+     * past the edge of the source repeat the edge. The baker closes the
+     * source when it is done with it.
+     */
+    public interface HeightSource extends Closeable {
+
+        int getWidth();
+
+        int getHeight();
+
+        /**
+         * Read a square block of heights
+         *
+         * @param x0 - first sample in X
+         * @param z0 - first sample in Z
+         * @param size - samples a side to read
+         * @param out - float array of size squared heights, rows of z
+         * @throws IOException if the source can not be read
+         */
+        void read(int x0, int z0, int size, float[] out) throws IOException;
+    }
+
+    /**
+     * Unsigned 16 bit raw heightmap, read with positioned reads so it can be
+     * far larger than memory.
+     */
+    public static class RawSource implements HeightSource {
+
+        private final FileChannel channel;
+        private final int width;
+        private final int height;
+        private final ByteOrder order;
+        private final float scale;
+
+        public RawSource(File rawFile, int w, int h, boolean bigEndian, float heightScale) throws IOException {
+            this.channel = new RandomAccessFile(rawFile, "r").getChannel();
+            this.width = w;
+            this.height = h;
+            this.order = bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+            this.scale = heightScale;
+            if (channel.size() < (long) w * h * 2) {
+                channel.close();
+                throw new IOException("Raw source is smaller than " + w + "x" + h);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public void read(int x0, int z0, int size, float[] out) throws IOException {
+            int count = Math.max(0, Math.min(size, width - x0));
+            ByteBuffer row = ByteBuffer.allocate(count * 2).order(order);
+            for (int z = 0; z < size; z++) {
+                int sz = Math.min(z0 + z, height - 1);
+                row.clear();
+                long position = ((long) sz * width + x0) * 2;
+                while (row.hasRemaining()) {
+                    if (channel.read(row, position + row.position()) < 0) {
+                        throw new IOException("Unexpected end of raw source");
+                    }
+                }
+                for (int x = 0; x < size; x++) {
+                    int sx = Math.min(x, count - 1);
+                    out[z * size + x] = sx < 0 ? 0 : (row.getShort(sx * 2) & 0xffff) * scale;
+                }
+            }
+        }
+    }
+
+    /**
+     * Synthetic rolling hills worked out on demand, for testing and
+     * benchmarking without a source heightmap.
+     */
+    public static class WaveSource implements HeightSource {
+
+        private final int size;
+
+        /**
+         * @param samples - int samples a side
+         */
+        public WaveSource(int samples) {
+            this.size = samples;
+        }
+
+        @Override
+        public int getWidth() {
+            return size;
+        }
+
+        @Override
+        public int getHeight() {
+            return size;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void read(int x0, int z0, int n, float[] out) {
+            for (int z = 0; z < n; z++) {
+                int sz = Math.min(z0 + z, size - 1);
+                for (int x = 0; x < n; x++) {
+                    out[z * n + x] = height(Math.min(x0 + x, size - 1), sz);
+                }
+            }
+        }
+
+        /**
+         * Height of one sample, a few octaves of waves so the LOD and
+         * normals have something to work with
+         */
+        public static float height(int x, int z) {
+            return (float) (40 * Math.sin(x * 0.011) * Math.cos(z * 0.013)
+                    + 12 * Math.sin(x * 0.051 + z * 0.037)
+                    + 3 * Math.cos(x * 0.23) * Math.sin(z * 0.19));
+        }
+    }
+
+    /**
+     * Image heightmap loaded whole through AWTLoader, must be square.
+     */
+    public static class ImageSource implements HeightSource {
+
+        private final float[] heights;
+        private final int size;
+
+        public ImageSource(File imageFile, float heightScale) {
+            DesktopAssetManager am = new DesktopAssetManager();
+            am.registerLocator(imageFile.getAbsoluteFile().getParent(), FileLocator.class);
+            am.registerLoader(AWTLoader.class, "png", "jpg", "bmp");
+            Image image = am.loadTexture(new TextureKey(imageFile.getName(), false)).getImage();
+            ImageBasedHeightMap map = new ImageBasedHeightMap(image, heightScale);
+            map.load();
+            this.heights = map.getHeightMap();
+            this.size = map.getSize();
+        }
+
+        @Override
+        public int getWidth() {
+            return size;
+        }
+
+        @Override
+        public int getHeight() {
+            return size;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void read(int x0, int z0, int n, float[] out) {
+            for (int z = 0; z < n; z++) {
+                int sz = Math.min(z0 + z, size - 1);
+                for (int x = 0; x < n; x++) {
+                    int sx = Math.min(x0 + x, size - 1);
+                    out[z * n + x] = heights[sz * size + sx];
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        String in = null;
+        String out = null;
+        String format = "pack";
+        int width = 0;
+        int height = 0;
+        int tileSize = 256;
+        int tileScale = 1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        float heightScale = 1f;
+        boolean bigEndian = false;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-in":
+                        in = args[++i];
+                        break;
+                    case "-out":
+                        out = args[++i];
+                        break;
+                    case "-format":
+                        format = args[++i];
+                        break;
+                    case "-width":
+                        width = Integer.parseInt(args[++i]);
+                        break;
+                    case "-height":
+                        height = Integer.parseInt(args[++i]);
+                        break;
+                    case "-tileSize":
+                        tileSize = Integer.parseInt(args[++i]);
+                        break;
+                    case "-tileScale":
+                        tileScale = Integer.parseInt(args[++i]);
+                        break;
+                    case "-threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "-heightScale":
+                        heightScale = Float.parseFloat(args[++i]);
+                        break;
+                    case "-bigendian":
+                        bigEndian = true;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (in == null | out == null) {
+                throw new IllegalArgumentException("-in and -out are required");
+            }
+            if (tileSize != 256 & tileSize != 512 & tileSize != 1024 & tileSize != 2048) {
+                throw new IllegalArgumentException("tileSize must be 256, 512, 1024 or 2048");
+            }
+            HeightSource source;
+            File inFile = new File(in);
+            if (in.toLowerCase().endsWith(".raw") | in.toLowerCase().endsWith(".r16")) {
+                if (width <= 0 | height <= 0) {
+                    throw new IllegalArgumentException("-width and -height are required for raw sources");
+                }
+                source = new RawSource(inFile, width, height, bigEndian, heightScale);
+            } else {
+                source = new ImageSource(inFile, heightScale);
+            }
+            long time = System.currentTimeMillis();
+            TileBaker baker = new TileBaker(source, new File(out), tileSize, tileScale, format, threads);
+            File mapFile = baker.bake();
+            bLog.log(Level.INFO, "Baked {0}x{1} map to {2} in {3}s", new Object[]{baker.getNumTilesX(),
+                baker.getNumTilesZ(), mapFile, (System.currentTimeMillis() - time) / 1000});
+        } catch (IllegalArgumentException | IOException ex) {
+            bLog.log(Level.SEVERE, "Baking failed: {0}", ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ *
+ */
+package com.radans.TerrainTiler;
+
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.terrain.geomipmap.TerrainQuad;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Second level cache of detached tiles. Tiles leaving the grid are kept here
+ * so that moving back onto them reuses the TerrainQuad instead of loading it
+ * from disk again. Bounded by a memory budget in bytes, with the least
+ * recently used tiles evicted first.
+ */
+class TileCache {
+
+    private final LinkedHashMap<Integer, TerrainQuad> tiles;   // access ordered, eldest first
+    private final LinkedHashMap<Integer, Long> sizes;          // estimated bytes of each tile
+    private long budget;                                       // max bytes to hold
+    private long used;                                         // bytes currently held
+
+    /**
+     * Create a new empty cache
+     *
+     * @param bytes - long memory budget in bytes, 0 to cache nothing
+     */
+    TileCache(long bytes) {
+        this.tiles = new LinkedHashMap<>(16, 0.75f, true);
+        this.sizes = new LinkedHashMap<>();
+        this.budget = bytes;
+    }
+
+    /**
+     * Add a detached tile to the cache, evicting older tiles if needed to stay
+     * within the budget. Tiles larger than the whole budget are not kept.
+     *
+     * @param key - int tile key
+     * @param tile - TerrainQuad no longer attached to the scene
+     */
+    synchronized void put(int key, TerrainQuad tile) {
+        remove(key);
+        long bytes = tileBytes(tile);
+        if (bytes > budget) {
+            return;
+        }
+        tiles.put(key, tile);
+        sizes.put(key, bytes);
+        used += bytes;
+        trim(budget);
+    }
+
+    /**
+     * Remove a tile from the cache and hand it back to the caller
+     *
+     * @param key - int tile key
+     * @return TerrainQuad or null if the tile is not cached
+     */
+    synchronized TerrainQuad take(int key) {
+        TerrainQuad tile = tiles.remove(key);
+        if (tile != null) {
+            used -= sizes.remove(key);
+        }
+        return tile;
+    }
+
+    /**
+     * Check if a tile is in the cache without touching its LRU order
+     *
+     * @param key - int tile key
+     * @return true if cached
+     */
+    synchronized boolean contains(int key) {
+        return sizes.containsKey(key);
+    }
+
+    /**
+     * Drop a tile from the cache
+     *
+     * @param key - int tile key
+     */
+    synchronized void remove(int key) {
+        take(key);
+    }
+
+    /**
+     * Drop all tiles from the cache
+     */
+    synchronized void clear() {
+        tiles.clear();
+        sizes.clear();
+        used = 0;
+    }
+
+    /**
+     * Set the memory budget, evicting tiles if now over it
+     *
+     * @param bytes - long budget in bytes
+     */
+    synchronized void setBudget(long bytes) {
+        budget = bytes;
+        trim(budget);
+    }
+
+    synchronized long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Get the estimated bytes held by the cache
+     *
+     * @return long of bytes
+     */
+    synchronized long getUsed() {
+        return used;
+    }
+
+    /**
+     * Get the number of tiles held by the cache
+     *
+     * @return int of tiles
+     */
+    synchronized int size() {
+        return tiles.size();
+    }
+
+    /**
+     * Evict least recently used tiles until no more than the given bytes are
+     * held.
+     *
+     * @param bytes - long max bytes to keep
+     */
+    synchronized void trim(long bytes) {
+        Iterator<Map.Entry<Integer, TerrainQuad>> it = tiles.entrySet().iterator();
+        while (used > bytes & it.hasNext()) {
+            int key = it.next().getKey();
+            it.remove();
+            used -= sizes.remove(key);
+        }
+    }
+
+    /**
+     * Estimate the memory used by a tile, being the vertex and index buffers
+     * of all its patches plus the heightmap each patch keeps.
+     *
+     * @param tile - TerrainQuad to measure
+     * @return long estimated bytes
+     */
+    static long tileBytes(TerrainQuad tile) {
+        return directBytes(tile) + heapBytes(tile);
+    }
+
+    /**
+     * Estimate the direct buffer memory used by a tile, the vertex and index
+     * buffers of all its patches
+     *
+     * @param tile - TerrainQuad to measure
+     * @return long estimated bytes
+     */
+    static long directBytes(TerrainQuad tile) {
+        long bytes = 0;
+        for (Geometry geom : tile.descendantMatches(Geometry.class)) {
+            Mesh mesh = geom.getMesh();
+            if (mesh == null) {
+                continue;
+            }
+            for (VertexBuffer vb : mesh.getBufferList()) {
+                if (vb.getData() != null) {
+                    bytes += (long) vb.getData().capacity() * vb.getFormat().getComponentSize();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Estimate the heap memory used by a tile, the heightmap each patch keeps
+     *
+     * @param tile - TerrainQuad to measure
+     * @return long estimated bytes
+     */
+    static long heapBytes(TerrainQuad tile) {
+        long bytes = 0;
+        for (Geometry geom : tile.descendantMatches(Geometry.class)) {
+            Mesh mesh = geom.getMesh();
+            if (mesh != null) {
+                bytes += (long) mesh.getVertexCount() * 4;     // patch heightmap
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ *
+ */
+package com.radans.TerrainTiler;
+
+import com.jme3.terrain.geomipmap.TerrainQuad;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * A read only copy of the heights of one tile for answering height and
+ * normal queries without touching the scene graph. A new copy replaces the
+ * old one whenever the tile is edited, so any thread may sample it while
+ * tiles are being attached, removed or changed.
+ *
+ * Heights are interpolated over the same triangles as the tile mesh, so
+ * results match TerrainQuad.getHeight for tiles built by the tiler.
+ *
+ * Edits are copy on write by row. An edited copy copies only the rows it
+ * changes and shares the rest, with the heights as loaded and with earlier
+ * copies, so a small edit to a large tile stays small.
+ */
+final class TileHeights {
+
+    private final float[] heights;  // size * size heights as loaded in rows of increasing z, null once every row is edited
+    private final float[][] rows;   // rows edited since loading, null for a row as loaded, null if none edited
+    private final int edited;       // rows edited
+    private final int size;         // samples a side, tileSize + 1
+    private final int patch;        // quads a side in each patch
+
+    /**
+     * Copy the heights out of a tile. Allocates, so call when the tile is
+     * loaded or edited, not per query.
+     *
+     * @param tile - TerrainQuad to copy
+     */
+    TileHeights(TerrainQuad tile) {
+        this(tile.getHeightMap(), tile.getTotalSize(), tile.getPatchSize() - 1);
+    }
+
+    /**
+     * Wrap heights read straight from a raw or pack file, the array is used
+     * as is and must not be changed after.
+     *
+     * @param hMap - float array of samples * samples heights
+     * @param samples - int samples a side, tileSize + 1
+     * @param patchSize - int quads a side in each patch of the tile mesh
+     */
+    TileHeights(float[] hMap, int samples, int patchSize) {
+        this(hMap, null, 0, samples, patchSize);
+    }
+
+    private TileHeights(float[] hMap, float[][] eRows, int nEdited, int samples, int patchSize) {
+        this.heights = hMap;
+        this.rows = eRows;
+        this.edited = nEdited;
+        this.size = samples;
+        this.patch = patchSize;
+    }
+
+    /**
+     * Samples a side, tileSize + 1
+     */
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Height of one sample
+     *
+     * @param x - int 0 to size - 1 along X
+     * @param z - int 0 to size - 1 along Z
+     * @return float height
+     */
+    float getSample(int x, int z) {
+        if (rows != null) {
+            float[] row = rows[z];
+            if (row != null) {
+                return row[x];
+            }
+        }
+        return heights[x + z * size];
+    }
+
+    /**
+     * A copy with some samples changed, this copy is left as it is. Only the
+     * rows changed are copied, the rest are shared.
+     *
+     * @param at - int array of sample indexes, x + z * size
+     * @param values - float array of new heights, or changes to add
+     * @param count - int number of samples to change, in order
+     * @param set - true to set the heights, false to add to them
+     * @return TileHeights of the edited heights
+     */
+    TileHeights edit(int[] at, float[] values, int count, boolean set) {
+        float[][] eRows = rows != null ? rows.clone() : new float[size][];
+        int nEdited = edited;
+        for (int i = 0; i < count; i++) {
+            int z = at[i] / size;
+            int x = at[i] - z * size;
+            float[] row = eRows[z];
+            if (row == null) {
+                row = Arrays.copyOfRange(heights, z * size, z * size + size);
+                eRows[z] = row;
+                nEdited++;
+            } else if (rows != null && row == rows[z]) {
+                row = row.clone();      // shared with this copy
+                eRows[z] = row;
+            }
+            row[x] = set ? values[i] : row[x] + values[i];
+        }
+        return new TileHeights(nEdited == size ? null : heights, eRows, nEdited, size, patch);
+    }
+
+    /**
+     * Bytes held by the heights, counting rows shared with other copies
+     */
+    long getBytes() {
+        long bytes = heights != null ? heights.length * 4L : 0;
+        if (rows != null) {
+            bytes += rows.length * 8L + edited * (size * 4L + 16);
+        }
+        return bytes;
+    }
+
+    /**
+     * Interpolated height at a point in tile local units
+     *
+     * @param x - float 0 to size - 1 along X
+     * @param z - float 0 to size - 1 along Z
+     * @return float height, NaN if outside the tile
+     */
+    float getHeight(float x, float z) {
+        if (!(x >= 0 & z >= 0 & x <= size - 1 & z <= size - 1)) {
+            return Float.NaN;
+        }
+        int ix = Math.min((int) x, size - 2);
+        int iz = Math.min((int) z, size - 2);
+        float xm = x - ix;
+        float zm = z - iz;
+        float h1 = getSample(ix, iz);
+        float h2 = getSample(ix + 1, iz);
+        float h3 = getSample(ix, iz + 1);
+        float h4 = getSample(ix + 1, iz + 1);
+        int px = ix % patch;
+        int pz = iz % patch;
+        if ((px == 0 & pz == 0) | (px == patch - 1 & pz == patch - 1)) {
+            // patch corners are split along the other diagonal
+            if (xm < zm) {
+                return h1 + xm * (h4 - h3) + zm * (h3 - h1);
+            }
+            return h1 + xm * (h2 - h1) + zm * (h4 - h2);
+        }
+        if (xm < 1f - zm) {
+            return h3 + xm * (h2 - h1) + (1f - zm) * (h1 - h3);
+        }
+        return h3 + xm * (h4 - h3) + (1f - zm) * (h2 - h4);
+    }
+
+    /**
+     * Smoothed normal at a point in tile local units, from the slopes at the
+     * four surrounding heights blended by distance
+     *
+     * @param x - float 0 to size - 1 along X
+     * @param z - float 0 to size - 1 along Z
+     * @param scale - float world units between heights
+     * @param out - float array to write x, y, z of the normal into
+     * @param offset - int index of x in out
+     * @return false if outside the tile, out is left untouched
+     */
+    boolean getNormal(float x, float z, float scale, float[] out, int offset) {
+        if (!(x >= 0 & z >= 0 & x <= size - 1 & z <= size - 1)) {
+            return false;
+        }
+        float dx = slope(x, z, true) / scale;
+        float dz = slope(x, z, false) / scale;
+        float len = (float) Math.sqrt(dx * dx + 1f + dz * dz);
+        out[offset] = -dx / len;
+        out[offset + 1] = 1f / len;
+        out[offset + 2] = -dz / len;
+        return true;
+    }
+
+    /**
+     * Smoothed normal at a point in tile local units, written to a buffer
+     *
+     * @param x - float 0 to size - 1 along X
+     * @param z - float 0 to size - 1 along Z
+     * @param scale - float world units between heights
+     * @param out - FloatBuffer to write x, y, z of the normal into
+     * @param index - int index of x in out, the position is not changed
+     * @return false if outside the tile, out is left untouched
+     */
+    boolean getNormal(float x, float z, float scale, FloatBuffer out, int index) {
+        if (!(x >= 0 & z >= 0 & x <= size - 1 & z <= size - 1)) {
+            return false;
+        }
+        float dx = slope(x, z, true) / scale;
+        float dz = slope(x, z, false) / scale;
+        float len = (float) Math.sqrt(dx * dx + 1f + dz * dz);
+        out.put(index, -dx / len);
+        out.put(index + 1, 1f / len);
+        out.put(index + 2, -dz / len);
+        return true;
+    }
+
+    /**
+     * Height change per sample at a point, blended from the four
+     * surrounding heights
+     */
+    private float slope(float x, float z, boolean alongX) {
+        int ix = Math.min((int) x, size - 2);
+        int iz = Math.min((int) z, size - 2);
+        float xm = x - ix;
+        float zm = z - iz;
+        if (alongX) {
+            return (1f - xm) * (1f - zm) * slopeX(ix, iz) + xm * (1f - zm) * slopeX(ix + 1, iz)
+                    + (1f - xm) * zm * slopeX(ix, iz + 1) + xm * zm * slopeX(ix + 1, iz + 1);
+        }
+        return (1f - xm) * (1f - zm) * slopeZ(ix, iz) + xm * (1f - zm) * slopeZ(ix + 1, iz)
+                + (1f - xm) * zm * slopeZ(ix, iz + 1) + xm * zm * slopeZ(ix + 1, iz + 1);
+    }
+
+    /**
+     * Copy of the heights, for callers wanting the whole heightmap
+     *
+     * @return float array of size * size heights
+     */
+    float[] copyHeights() {
+        float[] hMap = heights != null ? heights.clone() : new float[size * size];
+        for (int z = 0; rows != null && z < size; z++) {
+            if (rows[z] != null) {
+                System.arraycopy(rows[z], 0, hMap, z * size, size);
+            }
+        }
+        return hMap;
+    }
+
+    /**
+     * Height change per sample along X at a height, one sided at the edges
+     */
+    private float slopeX(int x, int z) {
+        int x0 = Math.max(x - 1, 0);
+        int x1 = Math.min(x + 1, size - 1);
+        return (getSample(x1, z) - getSample(x0, z)) / (x1 - x0);
+    }
+
+    /**
+     * Height change per sample along Z at a height, one sided at the edges
+     */
+    private float slopeZ(int x, int z) {
+        int z0 = Math.max(z - 1, 0);
+        int z1 = Math.min(z + 1, size - 1);
+        return (getSample(x, z1) - getSample(x, z0)) / (z1 - z0);
+    }
+}
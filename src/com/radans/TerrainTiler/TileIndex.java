@@ -0,0 +1,207 @@
+/*
+ *
+ */
+package com.radans.TerrainTiler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+
+/**
+ * Per tile facts about a map of raw or j3o tiles, written by the TileBaker
+ * next to the map file so the tiler knows which tiles exist and how high
+ * they reach without opening any of them. Tile packs carry the same facts in
+ * their own index so do not need one.
+ *
+ * All values are little endian.
+ *      header: magic "TTIX", version, numTilesX, numTilesZ, tileSize,
+ *              reserved (8 ints)
+ *      index:  numTilesX * numTilesZ entries in order x + z * numTilesX of
+ *              float min height, float max height, int flags
+ *
+ * The index is memory mapped, so even a 4096 a side map costs nothing until
+ * entries are looked at.
+ */
+class TileIndex {
+
+    static final int MAGIC = 0x58495454;        // "TTIX"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 32;
+    static final int ENTRY_BYTES = 12;
+    static final int FLAG_EXISTS = 1;           // tile has data
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer index;
+    private final int numTilesX;
+    private final int numTilesZ;
+    private final int tileSize;
+
+    /**
+     * Open a tile index for reading
+     *
+     * @param indexFile - File of the index
+     * @throws IOException if the file can not be read or is not an index
+     */
+    TileIndex(File indexFile) throws IOException {
+        this.file = new RandomAccessFile(indexFile, "r");
+        FileChannel channel = file.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                file.close();
+                throw new IOException("Unexpected end of tile index");
+            }
+        }
+        header.flip();
+        if (header.getInt() != MAGIC | header.getInt() != VERSION) {
+            file.close();
+            throw new IOException("Not a version " + VERSION + " tile index: " + indexFile);
+        }
+        numTilesX = header.getInt();
+        numTilesZ = header.getInt();
+        tileSize = header.getInt();
+        long length = (long) numTilesX * numTilesZ * ENTRY_BYTES;
+        if (numTilesX <= 0 | numTilesZ <= 0 || channel.size() < HEADER_BYTES + length) {
+            file.close();
+            throw new IOException("Tile index truncated: " + indexFile);
+        }
+        index = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, length);
+        index.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    int getNumTilesX() {
+        return numTilesX;
+    }
+
+    int getNumTilesZ() {
+        return numTilesZ;
+    }
+
+    int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Position of a tiles index entry, or -1 if outside the map
+     */
+    private int entry(int tileX, int tileZ) {
+        if (tileX < 0 | tileX >= numTilesX | tileZ < 0 | tileZ >= numTilesZ) {
+            return -1;
+        }
+        return (tileX + tileZ * numTilesX) * ENTRY_BYTES;
+    }
+
+    /**
+     * Check if a tile has data
+     *
+     * @param tileX - Tile X location
+     * @param tileZ - Tile Z location
+     * @return true if the tile exists
+     */
+    boolean hasTile(int tileX, int tileZ) {
+        int e = entry(tileX, tileZ);
+        return e >= 0 && (index.getInt(e + 8) & FLAG_EXISTS) != 0;
+    }
+
+    /**
+     * Get the lowest height of a tile, NaN if outside the map
+     */
+    float getMinHeight(int tileX, int tileZ) {
+        int e = entry(tileX, tileZ);
+        return e < 0 ? Float.NaN : index.getFloat(e);
+    }
+
+    /**
+     * Get the highest height of a tile, NaN if outside the map
+     */
+    float getMaxHeight(int tileX, int tileZ) {
+        int e = entry(tileX, tileZ);
+        return e < 0 ? Float.NaN : index.getFloat(e + 4);
+    }
+
+    /**
+     * Close the index, the mapping is released once it is no longer
+     * referenced
+     */
+    void close() {
+        try {
+            file.close();
+        } catch (IOException ex) {
+            TerrainTiler.tLog.log(Level.WARNING, "Error closing tile index {0}", ex.getMessage());
+        }
+    }
+
+    /**
+     * Writes a tile index as tiles are baked, straight into the memory mapped
+     * file so even a 4096 a side index is not held on the heap. writeTile may
+     * be called from many threads at once.
+     */
+    static class Writer implements Closeable {
+
+        private final RandomAccessFile file;
+        private final MappedByteBuffer index;
+        private final int numTilesX;
+
+        /**
+         * Create an index with every tile missing, replacing any existing file
+         *
+         * @param indexFile - File to write
+         * @param nTilesX - number of tiles in the X direction
+         * @param nTilesZ - number of tiles in the Z direction
+         * @param tSize - size of each tile
+         * @throws IOException if the file can not be written
+         */
+        Writer(File indexFile, int nTilesX, int nTilesZ, int tSize) throws IOException {
+            this.numTilesX = nTilesX;
+            this.file = new RandomAccessFile(indexFile, "rw");
+            try {
+                file.setLength(0);
+                FileChannel channel = file.getChannel();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC).putInt(VERSION).putInt(nTilesX).putInt(nTilesZ).putInt(tSize);
+                header.clear();
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+                this.index = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES,
+                        (long) nTilesX * nTilesZ * ENTRY_BYTES);
+            } catch (IOException ex) {
+                file.close();
+                throw ex;
+            }
+            this.index.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * Record a tile
+         *
+         * @param tileX - Tile X location
+         * @param tileZ - Tile Z location
+         * @param min - float lowest height
+         * @param max - float highest height
+         */
+        synchronized void writeTile(int tileX, int tileZ, float min, float max) {
+            int e = (tileX + tileZ * numTilesX) * ENTRY_BYTES;
+            index.putFloat(e, min);
+            index.putFloat(e + 4, max);
+            index.putInt(e + 8, FLAG_EXISTS);
+        }
+
+        /**
+         * Flush the index and close the file
+         *
+         * @throws IOException if the file can not be written
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            index.force();
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ *
+ */
+package com.radans.TerrainTiler;
+
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+
+/**
+ * An interest point the TerrainTiler keeps tiles loaded around, such as a
+ * player on a server or an extra camera for split screen. Each observer has
+ * its own window of tiles, see GridWindow, tiles wanted by several observers
+ * are loaded once and kept until the last of them moves away.
+ *
+ * Move the observer from any thread with setLocation, or create it with a
+ * Camera to have it follow that camera. The tiler picks up changes on its
+ * next update.
+ *
+ * @author Radan Vowles
+ */
+public class TileObserver {
+
+    private volatile float x;
+    private volatile float z;
+    private volatile GridWindow window;         // null to use the tilers window
+    final Camera camera;                        // camera to follow, or null
+    volatile int cellX = Integer.MIN_VALUE;     // tile cell last seen by the tiler
+    volatile int cellZ = Integer.MIN_VALUE;
+    volatile int sector;                        // heading last seen by the tiler
+    float lastX;                                // location the heading was last taken from
+    float lastZ;
+    // window last counted into the tile references, only used by the tiler thread
+    boolean applied;
+    int appliedX;
+    int appliedZ;
+    GridWindow appliedWindow;
+    int appliedSector;
+
+    /**
+     * Create an observer at a world location
+     *
+     * @param x - float World X coordinate
+     * @param z - float World Z coordinate
+     */
+    public TileObserver(float x, float z) {
+        this.x = x;
+        this.z = z;
+        this.camera = null;
+    }
+
+    /**
+     * Create an observer following a camera. The tiler moves it to the camera
+     * location each frame and adds the camera to its LOD cameras.
+     *
+     * @param cam - Camera to follow
+     */
+    public TileObserver(Camera cam) {
+        this.camera = cam;
+        this.x = cam.getLocation().x;
+        this.z = cam.getLocation().z;
+    }
+
+    /**
+     * Move the observer
+     *
+     * @param x - float World X coordinate
+     * @param z - float World Z coordinate
+     */
+    public void setLocation(float x, float z) {
+        this.x = x;
+        this.z = z;
+    }
+
+    /**
+     * Move the observer, the height is ignored
+     *
+     * @param location - Vector3f World location
+     */
+    public void setLocation(Vector3f location) {
+        setLocation(location.x, location.z);
+    }
+
+    /**
+     * Get the World X coordinate
+     *
+     * @return float of X
+     */
+    public float getX() {
+        return x;
+    }
+
+    /**
+     * Get the World Z coordinate
+     *
+     * @return float of Z
+     */
+    public float getZ() {
+        return z;
+    }
+
+    /**
+     * Get the camera this observer follows
+     *
+     * @return Camera or null if moved by hand
+     */
+    public Camera getCamera() {
+        return camera;
+    }
+
+    /**
+     * Sets the size of the square grid of tiles kept around this observer.
+     * Must be odd, or 0 to use the window of the tiler.
+     *
+     * @param size - int of size
+     */
+    public void setGridSize(int size) {
+        if (size == 0) {
+            this.window = null;
+        } else if (size > 0 & (size & 1) == 1) {
+            this.window = GridWindow.square(size / 2);
+        }
+    }
+
+    /**
+     * Get the size of the grid kept around this observer
+     *
+     * @return int of size across the window, 0 if using the tilers window
+     */
+    public int getGridSize() {
+        GridWindow w = window;
+        return w == null ? 0 : w.getRadius() * 2 + 1;
+    }
+
+    /**
+     * Sets the window of tiles kept around this observer
+     *
+     * @param w - GridWindow, or null to use the window of the tiler
+     */
+    public void setWindow(GridWindow w) {
+        this.window = w;
+    }
+
+    /**
+     * Get the window of tiles kept around this observer
+     *
+     * @return GridWindow or null if using the window of the tiler
+     */
+    public GridWindow getWindow() {
+        return window;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ *
+ */
+package com.radans.TerrainTiler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+
+/**
+ * A coarse heightmap of the whole map, a few samples per tile, written by
+ * the TileBaker for drawing the far field beyond the tile grid without
+ * loading any tiles.
+ *
+ * All values are little endian.
+ *      header: magic "TTOV", version, numTilesX, numTilesZ, samplesPerTile,
+ *              reserved (8 ints)
+ *      data:   (numTilesX * samplesPerTile + 1) by
+ *              (numTilesZ * samplesPerTile + 1) float heights in rows of
+ *              increasing z
+ *
+ * Samples are taken every tileSize / samplesPerTile heights so they fall on
+ * tile heights, and samples on a tile edge are shared with the neighbour.
+ * The data is memory mapped, so only the parts drawn are ever read.
+ */
+class TileOverview {
+
+    static final int MAGIC = 0x564F5454;        // "TTOV"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 32;
+
+    private final RandomAccessFile file;
+    private final FloatBuffer heights;
+    private final int numTilesX;
+    private final int numTilesZ;
+    private final int samplesPerTile;
+    private final int width;                    // samples a row
+
+    /**
+     * Open an overview for reading
+     *
+     * @param overviewFile - File of the overview
+     * @throws IOException if the file can not be read or is not an overview
+     */
+    TileOverview(File overviewFile) throws IOException {
+        this.file = new RandomAccessFile(overviewFile, "r");
+        FileChannel channel = file.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                file.close();
+                throw new IOException("Unexpected end of tile overview");
+            }
+        }
+        header.flip();
+        if (header.getInt() != MAGIC | header.getInt() != VERSION) {
+            file.close();
+            throw new IOException("Not a version " + VERSION + " tile overview: " + overviewFile);
+        }
+        numTilesX = header.getInt();
+        numTilesZ = header.getInt();
+        samplesPerTile = header.getInt();
+        width = numTilesX * samplesPerTile + 1;
+        long length = (long) width * (numTilesZ * samplesPerTile + 1) * 4;
+        if (samplesPerTile <= 0 || channel.size() < HEADER_BYTES + length) {
+            file.close();
+            throw new IOException("Tile overview truncated: " + overviewFile);
+        }
+        heights = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, length)
+                .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+    }
+
+    /**
+     * Samples to a tile, a side
+     */
+    static int samplesFor(int nTilesX, int nTilesZ, int tSize) {
+        int n = 16;     // keep the whole overview to 4096 samples a side
+        while (n > 1 & (Math.max(nTilesX, nTilesZ) * n > 4096 | tSize % n != 0)) {
+            n /= 2;
+        }
+        return n;
+    }
+
+    int getNumTilesX() {
+        return numTilesX;
+    }
+
+    int getNumTilesZ() {
+        return numTilesZ;
+    }
+
+    int getSamplesPerTile() {
+        return samplesPerTile;
+    }
+
+    /**
+     * Get one sample, clamped to the edge of the map
+     *
+     * @param x - int sample in X, 0 to numTilesX * samplesPerTile
+     * @param z - int sample in Z, 0 to numTilesZ * samplesPerTile
+     * @return float height
+     */
+    float getHeight(int x, int z) {
+        x = Math.max(0, Math.min(x, width - 1));
+        z = Math.max(0, Math.min(z, numTilesZ * samplesPerTile));
+        return heights.get(x + z * width);
+    }
+
+    /**
+     * Close the overview, the mapping is released once it is no longer
+     * referenced
+     */
+    void close() {
+        try {
+            file.close();
+        } catch (IOException ex) {
+            TerrainTiler.tLog.log(Level.WARNING, "Error closing tile overview {0}", ex.getMessage());
+        }
+    }
+
+    /**
+     * Writes an overview as tiles are baked, writeTile may be called from
+     * many threads at once. Samples of tiles never written stay at 0.
+     */
+    static class Writer implements Closeable {
+
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final int samplesPerTile;
+        private final int step;                 // tile heights between samples
+        private final int width;
+
+        /**
+         * Create a new overview, replacing any existing file
+         *
+         * @param overviewFile - File to write
+         * @param nTilesX - number of tiles in the X direction
+         * @param nTilesZ - number of tiles in the Z direction
+         * @param tSize - size of each tile
+         * @throws IOException if the file can not be written
+         */
+        Writer(File overviewFile, int nTilesX, int nTilesZ, int tSize) throws IOException {
+            this.samplesPerTile = samplesFor(nTilesX, nTilesZ, tSize);
+            this.step = tSize / samplesPerTile;
+            this.width = nTilesX * samplesPerTile + 1;
+            this.file = new RandomAccessFile(overviewFile, "rw");
+            this.file.setLength(0);
+            this.file.setLength(HEADER_BYTES + (long) width * (nTilesZ * samplesPerTile + 1) * 4);
+            this.channel = file.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(nTilesX).putInt(nTilesZ).putInt(samplesPerTile);
+            header.clear();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        }
+
+        /**
+         * Sample a baked tile into the overview
+         *
+         * @param tileX - Tile X location
+         * @param tileZ - Tile Z location
+         * @param hMap - float array of (tileSize + 1) squared heights
+         * @throws IOException if the file can not be written
+         */
+        void writeTile(int tileX, int tileZ, float[] hMap) throws IOException {
+            int size = (int) Math.sqrt(hMap.length);
+            ByteBuffer row = ByteBuffer.allocate((samplesPerTile + 1) * 4).order(ByteOrder.LITTLE_ENDIAN);
+            for (int z = 0; z <= samplesPerTile; z++) {
+                row.clear();
+                for (int x = 0; x <= samplesPerTile; x++) {
+                    row.putFloat(hMap[x * step + z * step * size]);
+                }
+                row.flip();
+                long at = HEADER_BYTES + ((long) (tileZ * samplesPerTile + z) * width + tileX * samplesPerTile) * 4;
+                while (row.hasRemaining()) {
+                    channel.write(row, at + row.position());
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ *
+ */
+package com.radans.TerrainTiler;
+
+import com.jme3.math.FastMath;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A single file holding every tile of a map, replacing the DIR-xxzz.jar
+ * files and their ZipLocators. The file starts with a header and an index
+ * with one entry per tile, which is memory mapped so finding a tile is one
+ * index lookup, followed by the tile data which is read with one positioned
+ * read and then inflated if compressed.
+ *
+ * All values are little endian.
+ *      header: magic "TTPK", version, numTilesX, numTilesZ, tileSize,
+ *              payload, compression, reserved (8 ints)
+ *      index:  numTilesX * numTilesZ entries in order x + z * numTilesX of
+ *              long offset (0 if tile missing), int stored length,
+ *              int raw length, float min height, float max height
+ *      data:   tile payloads as stored
+ *
+ * Payloads are either a j3o TerrainQuad or (tileSize + 1) squared heights as
+ * floats or half floats, in rows of increasing z.
+ */
+class TilePack {
+
+    static final int MAGIC = 0x4B505454;        // "TTPK"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 32;
+    static final int ENTRY_BYTES = 24;
+    static final int PAYLOAD_J3O = 0;
+    static final int PAYLOAD_FLOAT = 1;
+    static final int PAYLOAD_HALF = 2;
+    static final int COMPRESS_NONE = 0;
+    static final int COMPRESS_DEFLATE = 1;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer index;
+    private final int numTilesX;
+    private final int numTilesZ;
+    private final int tileSize;
+    private final int payload;
+    private final int compression;
+
+    /**
+     * Open a tile pack for reading
+     *
+     * @param packFile - File of the pack
+     * @throws IOException if the file can not be read or is not a pack
+     */
+    TilePack(File packFile) throws IOException {
+        this.file = new RandomAccessFile(packFile, "r");
+        this.channel = file.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC | header.getInt() != VERSION) {
+            close();
+            throw new IOException("Not a version " + VERSION + " tile pack: " + packFile);
+        }
+        numTilesX = header.getInt();
+        numTilesZ = header.getInt();
+        tileSize = header.getInt();
+        payload = header.getInt();
+        compression = header.getInt();
+        index = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, (long) numTilesX * numTilesZ * ENTRY_BYTES);
+        index.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    int getNumTilesX() {
+        return numTilesX;
+    }
+
+    int getNumTilesZ() {
+        return numTilesZ;
+    }
+
+    int getTileSize() {
+        return tileSize;
+    }
+
+    int getPayload() {
+        return payload;
+    }
+
+    /**
+     * Position of a tiles index entry, or -1 if outside the pack
+     */
+    private int entry(int tileX, int tileZ) {
+        if (tileX < 0 | tileX >= numTilesX | tileZ < 0 | tileZ >= numTilesZ) {
+            return -1;
+        }
+        return (tileX + tileZ * numTilesX) * ENTRY_BYTES;
+    }
+
+    /**
+     * Check if the pack holds a tile
+     *
+     * @param tileX - Tile X location
+     * @param tileZ - Tile Z location
+     * @return true if the tile is in the pack
+     */
+    boolean hasTile(int tileX, int tileZ) {
+        int e = entry(tileX, tileZ);
+        return e >= 0 && index.getLong(e) != 0;
+    }
+
+    /**
+     * Get the lowest height of a tile as recorded in the index
+     */
+    float getMinHeight(int tileX, int tileZ) {
+        int e = entry(tileX, tileZ);
+        return e < 0 ? Float.NaN : index.getFloat(e + 16);
+    }
+
+    /**
+     * Get the highest height of a tile as recorded in the index
+     */
+    float getMaxHeight(int tileX, int tileZ) {
+        int e = entry(tileX, tileZ);
+        return e < 0 ? Float.NaN : index.getFloat(e + 20);
+    }
+
+    /**
+     * Bytes a tile takes in the pack, before inflating
+     *
+     * @return int stored length, 0 if the tile is not in the pack
+     */
+    int getStoredBytes(int tileX, int tileZ) {
+        int e = entry(tileX, tileZ);
+        return e < 0 || index.getLong(e) == 0 ? 0 : index.getInt(e + 8);
+    }
+
+    /**
+     * Read and inflate the payload of one tile
+     *
+     * @param tileX - Tile X location
+     * @param tileZ - Tile Z location
+     * @return byte array of the payload
+     * @throws IOException if the tile is not in the pack or can not be read
+     */
+    byte[] readTile(int tileX, int tileZ) throws IOException {
+        int e = entry(tileX, tileZ);
+        long offset = e < 0 ? 0 : index.getLong(e);
+        if (offset == 0) {
+            throw new IOException("Tile not in pack: " + tileX + "," + tileZ);
+        }
+        int stored = index.getInt(e + 8);
+        int length = index.getInt(e + 12);
+        ByteBuffer data = ByteBuffer.allocate(stored);
+        readFully(data, offset);
+        if (compression == COMPRESS_NONE) {
+            return data.array();
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data.array());
+            byte[] raw = new byte[length];
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                n += inflater.inflate(raw, n, length - n);
+                if (inflater.needsInput()) {
+                    break;
+                }
+            }
+            if (n != length) {
+                throw new IOException("Tile data truncated: " + tileX + "," + tileZ);
+            }
+            return raw;
+        } catch (DataFormatException ex) {
+            throw new IOException("Tile data corrupt: " + tileX + "," + tileZ, ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Read the heights of one tile from a pack of heights
+     *
+     * @param tileX - Tile X location
+     * @param tileZ - Tile Z location
+     * @return float array of (tileSize + 1) squared heights
+     * @throws IOException if the tile can not be read
+     */
+    float[] readHeights(int tileX, int tileZ) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(readTile(tileX, tileZ)).order(ByteOrder.LITTLE_ENDIAN);
+        float[] heights = new float[(tileSize + 1) * (tileSize + 1)];
+        if (payload == PAYLOAD_HALF) {
+            ShortBuffer sb = buf.asShortBuffer();
+            for (int i = 0; i < heights.length; i++) {
+                heights[i] = FastMath.convertHalfToFloat(sb.get(i));
+            }
+        } else {
+            buf.asFloatBuffer().get(heights);
+        }
+        return heights;
+    }
+
+    /**
+     * Positioned read filling the buffer, safe to call from many threads
+     */
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position + buf.position());
+            if (n < 0) {
+                throw new IOException("Unexpected end of tile pack");
+            }
+        }
+    }
+
+    /**
+     * Close the pack, tiles can no longer be read
+     */
+    void close() {
+        try {
+            channel.close();
+            file.close();
+        } catch (IOException ex) {
+            TerrainTiler.tLog.log(Level.WARNING, "Error closing tile pack {0}", ex.getMessage());
+        }
+    }
+
+    /**
+     * Writes a tile pack. Tiles may be written in any order and from many
+     * threads, their index entries go straight into the memory mapped index
+     * so even a 4096 a side pack does not hold its index on the heap.
+     */
+    static class Writer {
+
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final MappedByteBuffer index;
+        private final int numTilesX;
+        private final int numTilesZ;
+        private final int compression;
+        private long end;                       // where the next tile goes
+
+        /**
+         * Create a new pack, replacing any existing file
+         *
+         * @param packFile - File to write
+         * @param nTilesX - number of tiles in the X direction
+         * @param nTilesZ - number of tiles in the Z direction
+         * @param tSize - size of each tile
+         * @param payloadType - one of the PAYLOAD types
+         * @param compressType - one of the COMPRESS types
+         * @throws IOException if the file can not be written
+         */
+        Writer(File packFile, int nTilesX, int nTilesZ, int tSize, int payloadType, int compressType) throws IOException {
+            this.file = new RandomAccessFile(packFile, "rw");
+            this.file.setLength(0);
+            this.channel = file.getChannel();
+            this.numTilesX = nTilesX;
+            this.numTilesZ = nTilesZ;
+            this.compression = compressType;
+            this.index = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES,
+                    (long) nTilesX * nTilesZ * ENTRY_BYTES);
+            this.index.order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(nTilesX).putInt(nTilesZ).putInt(tSize)
+                    .putInt(payloadType).putInt(compressType).putInt(0);
+            header.flip();
+            channel.write(header, 0);
+            this.end = HEADER_BYTES + (long) index.capacity();
+        }
+
+        /**
+         * Compress a payload ready for writing, if the pack is compressed.
+         * Can be called from many threads at once.
+         *
+         * @param raw - byte array of the payload
+         * @return byte array to store
+         */
+        byte[] encode(byte[] raw) {
+            if (compression == COMPRESS_NONE) {
+                return raw;
+            }
+            Deflater deflater = new Deflater();
+            try {
+                deflater.setInput(raw);
+                deflater.finish();
+                byte[] out = new byte[raw.length + raw.length / 100 + 64];
+                int n = 0;
+                while (!deflater.finished()) {
+                    if (n == out.length) {
+                        out = Arrays.copyOf(out, out.length * 2);
+                    }
+                    n += deflater.deflate(out, n, out.length - n);
+                }
+                return Arrays.copyOf(out, n);
+            } finally {
+                deflater.end();
+            }
+        }
+
+        /**
+         * Encode heights as the given payload type
+         *
+         * @param heights - float array of heights
+         * @param payloadType - PAYLOAD_FLOAT or PAYLOAD_HALF
+         * @return byte array of the raw payload
+         */
+        static byte[] heightBytes(float[] heights, int payloadType) {
+            ByteBuffer buf = ByteBuffer.allocate(heights.length * (payloadType == PAYLOAD_HALF ? 2 : 4))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (payloadType == PAYLOAD_HALF) {
+                ShortBuffer sb = buf.asShortBuffer();
+                for (float h : heights) {
+                    sb.put(FastMath.convertFloatToHalf(h));
+                }
+            } else {
+                FloatBuffer fb = buf.asFloatBuffer();
+                fb.put(heights);
+            }
+            return buf.array();
+        }
+
+        /**
+         * Append a tile to the pack
+         *
+         * @param tileX - Tile X location
+         * @param tileZ - Tile Z location
+         * @param stored - byte array from encode
+         * @param rawLength - int length of the payload before encoding
+         * @param minHeight - float lowest height in the tile
+         * @param maxHeight - float highest height in the tile
+         * @throws IOException if the tile can not be written
+         */
+        synchronized void writeTile(int tileX, int tileZ, byte[] stored, int rawLength,
+                float minHeight, float maxHeight) throws IOException {
+            if (tileX < 0 | tileX >= numTilesX | tileZ < 0 | tileZ >= numTilesZ) {
+                throw new IOException("Tile outside pack: " + tileX + "," + tileZ);
+            }
+            ByteBuffer data = ByteBuffer.wrap(stored);
+            long offset = end;
+            while (data.hasRemaining()) {
+                channel.write(data, offset + data.position());
+            }
+            end += stored.length;
+            int e = (tileX + tileZ * numTilesX) * ENTRY_BYTES;
+            index.putLong(e, offset);
+            index.putInt(e + 8, stored.length);
+            index.putInt(e + 12, rawLength);
+            index.putFloat(e + 16, minHeight);
+            index.putFloat(e + 20, maxHeight);
+        }
+
+        /**
+         * Flush the index and close the pack
+         *
+         * @throws IOException if the index can not be written
+         */
+        synchronized void close() throws IOException {
+            index.force();
+            channel.close();
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ *
+ */
+package com.radans.TerrainTiler;
+
+/**
+ * Count of observers wanting each tile, keyed on the primitive tile key. A
+ * tile is wanted while its count is above 0, so tiles in the overlap of
+ * several observer grids are loaded once and only dropped when the last
+ * observer moves away.
+ *
+ * Also used as a plain set of tile keys, counting each key once.
+ *
+ * Open addressing over int arrays with no boxing. Not thread safe, callers
+ * sharing one between threads synchronize on it.
+ */
+class TileRefs {
+
+    private static final int EMPTY = -1;        // tile keys are never negative
+
+    private int[] keys;
+    private int[] counts;
+    private int size;
+
+    TileRefs() {
+        keys = new int[64];
+        counts = new int[64];
+        clear();
+    }
+
+    private static int hash(int key, int mask) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Get how many observers want a tile
+     *
+     * @param key - int tile key
+     * @return int count, 0 if none
+     */
+    int get(int key) {
+        int mask = keys.length - 1;
+        for (int i = hash(key, mask);; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return counts[i];
+            }
+            if (keys[i] == EMPTY) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Change how many observers want a tile, dropping it when none do
+     *
+     * @param key - int tile key
+     * @param delta - int change, +1 or -1
+     * @return int new count
+     */
+    int add(int key, int delta) {
+        int mask = keys.length - 1;
+        int i = hash(key, mask);
+        while (keys[i] != key & keys[i] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        if (keys[i] == EMPTY) {
+            if (delta <= 0) {
+                return 0;
+            }
+            if ((size + 1) * 2 > keys.length) {
+                resize(keys.length * 2);
+                return add(key, delta);
+            }
+            keys[i] = key;
+            counts[i] = 0;
+            size++;
+        }
+        int count = counts[i] + delta;
+        if (count > 0) {
+            counts[i] = count;
+            return count;
+        }
+        delete(i);
+        return 0;
+    }
+
+    /**
+     * Remove the entry at a slot, shifting following entries back so probing
+     * still finds them
+     */
+    private void delete(int slot) {
+        int mask = keys.length - 1;
+        int gap = slot;
+        for (int j = (slot + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+            int home = hash(keys[j], mask);
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                counts[gap] = counts[j];
+                gap = j;
+            }
+        }
+        keys[gap] = EMPTY;
+        size--;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldCounts = counts;
+        keys = new int[capacity];
+        counts = new int[capacity];
+        size = 0;
+        for (int i = 0; i < capacity; i++) {
+            keys[i] = EMPTY;
+        }
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                add(oldKeys[i], oldCounts[i]);
+            }
+        }
+    }
+
+    /**
+     * Forget all counts
+     */
+    void clear() {
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = EMPTY;
+        }
+        size = 0;
+    }
+
+    /**
+     * Number of wanted tiles
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Number of slots, for walking the wanted tiles with keyAt
+     */
+    int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * Key of the tile in a slot
+     *
+     * @param slot - int 0 to capacity - 1
+     * @return int tile key or -1 if the slot is empty
+     */
+    int keyAt(int slot) {
+        return keys[slot];
+    }
+}
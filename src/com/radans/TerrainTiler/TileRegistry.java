@@ -0,0 +1,323 @@
+/*
+ *
+ */
+package com.radans.TerrainTiler;
+
+import com.jme3.terrain.geomipmap.TerrainQuad;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Registry of every tile the tiler is tracking, from queued for loading
+ * through to detached and waiting for removal. Tiles are held in an open
+ * addressing hash table keyed on the primitive tile key tx + tz * maxTiles,
+ * so lookups neither box the key nor allocate. Each tile carries its own
+ * state, replacing the old map of magic flag numbers.
+ *
+ * All table access is synchronized on the registry, state changes on a tile
+ * are atomic so the tiler thread, loader threads and render thread can each
+ * move a tile on without losing another threads change.
+ */
+class TileRegistry {
+
+    /**
+     * Life cycle of a tile. The old flag numbers were LOADED 2, ATTACHED 3,
+     * DETACHING 4 and DETACHED 5.
+     */
+    enum TileState {
+
+        QUEUED,         // load queued or running
+        PREFETCHED,     // loaded ahead of the grid, not yet wanted
+        LOADED,         // loaded and waiting to be attached
+        ATTACHED,       // attached to the scene
+        DETACHING,      // out of range, waiting to be detached
+        DETACHED;       // detached, waiting to be removed
+
+        /**
+         * True if the tile is in the grid, being loaded into or removed from
+         * the scene, as tiles in the old tileSet were.
+         */
+        boolean inScene() {
+            return this == LOADED | this == ATTACHED | this == DETACHING | this == DETACHED;
+        }
+    }
+
+    /**
+     * One tracked tile
+     */
+    static final class Tile {
+
+        final int key;
+        final int x;
+        final int z;
+        volatile TerrainQuad quad;                  // null until loaded
+        volatile TileHeights heights;               // copy for queries, null until loaded
+        volatile FutureTask<TerrainQuad> load;      // load task while QUEUED
+        volatile boolean wanted;                    // in the grid of at least one observer
+        volatile boolean shed;                      // dropped to keep within the memory budget
+        volatile long heapBytes;                    // estimated memory held once loaded, in
+        volatile long directBytes;                  // arrays and in direct buffers
+        volatile Tile right;                        // attached neighbours, +x, -x, +z, -z
+        volatile Tile left;                         // set only while this tile is attached
+        volatile Tile down;
+        volatile Tile top;
+        private final AtomicReference<TileState> state;
+
+        Tile(int key, int x, int z, TileState initial) {
+            this.key = key;
+            this.x = x;
+            this.z = z;
+            this.state = new AtomicReference<>(initial);
+        }
+
+        TileState getState() {
+            return state.get();
+        }
+
+        /**
+         * Move the tile to a new state if it is still in the expected one
+         *
+         * @return true if the state was changed
+         */
+        boolean setState(TileState expect, TileState update) {
+            return state.compareAndSet(expect, update);
+        }
+    }
+
+    private final int keyStride;        // key = x + z * keyStride
+    private Tile[] table;               // open addressing, length a power of 2
+    private int count;
+
+    /**
+     * Create a registry
+     *
+     * @param stride - int multiplier of z in tile keys
+     * @param expected - int number of tiles expected to be held
+     */
+    TileRegistry(int stride, int expected) {
+        this.keyStride = stride;
+        int cap = 16;
+        while (cap < expected * 2) {
+            cap *= 2;
+        }
+        this.table = new Tile[cap];
+    }
+
+    /**
+     * Key of a tile
+     */
+    int key(int x, int z) {
+        return x + z * keyStride;
+    }
+
+    private static int hash(int key, int mask) {
+        int h = key * 0x9E3779B9;       // spread neighbouring keys
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Get a tile by key
+     *
+     * @param key - int tile key
+     * @return Tile or null if not tracked
+     */
+    synchronized Tile get(int key) {
+        int mask = table.length - 1;
+        for (int i = hash(key, mask);; i = (i + 1) & mask) {
+            Tile t = table[i];
+            if (t == null) {
+                return null;
+            }
+            if (t.key == key) {
+                return t;
+            }
+        }
+    }
+
+    /**
+     * Get the quad of a tile in the scene, loaded, attached or being removed
+     *
+     * @param key - int tile key
+     * @return TerrainQuad or null if no such tile
+     */
+    TerrainQuad getQuad(int key) {
+        Tile t = get(key);
+        return t != null && t.getState().inScene() ? t.quad : null;
+    }
+
+    /**
+     * Start tracking a tile
+     *
+     * @param x - Tile X location
+     * @param z - Tile Z location
+     * @param state - initial TileState
+     * @param quad - TerrainQuad if already loaded, or null
+     * @return the new Tile, or null if the tile is already tracked
+     */
+    synchronized Tile add(int x, int z, TileState state, TerrainQuad quad) {
+        int key = key(x, z);
+        if (get(key) != null) {
+            return null;
+        }
+        if ((count + 1) * 2 > table.length) {
+            resize(table.length * 2);
+        }
+        Tile t = new Tile(key, x, z, state);
+        t.quad = quad;
+        insert(table, t);
+        count++;
+        return t;
+    }
+
+    private static void insert(Tile[] tab, Tile t) {
+        int mask = tab.length - 1;
+        int i = hash(t.key, mask);
+        while (tab[i] != null) {
+            i = (i + 1) & mask;
+        }
+        tab[i] = t;
+    }
+
+    private void resize(int capacity) {
+        Tile[] old = table;
+        table = new Tile[capacity];
+        for (Tile t : old) {
+            if (t != null) {
+                insert(table, t);
+            }
+        }
+    }
+
+    /**
+     * Stop tracking a tile, if it is still the tracked one for its key
+     *
+     * @param tile - Tile to remove
+     * @return true if removed
+     */
+    synchronized boolean remove(Tile tile) {
+        int mask = table.length - 1;
+        int i = hash(tile.key, mask);
+        while (table[i] != tile) {
+            if (table[i] == null) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        // shift following entries back so probing still finds them
+        int gap = i;
+        for (int j = (i + 1) & mask; table[j] != null; j = (j + 1) & mask) {
+            int home = hash(table[j].key, mask);
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                table[gap] = table[j];
+                gap = j;
+            }
+        }
+        table[gap] = null;
+        count--;
+        return true;
+    }
+
+    /**
+     * Link an attached tile with its attached neighbours, so the LOD seams
+     * can be found without looking tiles up
+     *
+     * @param t - Tile just attached
+     */
+    synchronized void link(Tile t) {
+        Tile n = get(t.key + 1);
+        if (n != null && n.getState() == TileState.ATTACHED) {
+            t.right = n;
+            n.left = t;
+        }
+        n = get(t.key - 1);
+        if (n != null && n.getState() == TileState.ATTACHED) {
+            t.left = n;
+            n.right = t;
+        }
+        n = get(t.key + keyStride);
+        if (n != null && n.getState() == TileState.ATTACHED) {
+            t.down = n;
+            n.top = t;
+        }
+        n = get(t.key - keyStride);
+        if (n != null && n.getState() == TileState.ATTACHED) {
+            t.top = n;
+            n.down = t;
+        }
+    }
+
+    /**
+     * Unlink a tile from its neighbours
+     *
+     * @param t - Tile just detached
+     */
+    synchronized void unlink(Tile t) {
+        if (t.right != null) {
+            t.right.left = null;
+        }
+        if (t.left != null) {
+            t.left.right = null;
+        }
+        if (t.down != null) {
+            t.down.top = null;
+        }
+        if (t.top != null) {
+            t.top.down = null;
+        }
+        t.right = null;
+        t.left = null;
+        t.down = null;
+        t.top = null;
+    }
+
+    /**
+     * Stop tracking all tiles
+     */
+    synchronized void clear() {
+        for (int i = 0; i < table.length; i++) {
+            if (table[i] != null) {
+                unlink(table[i]);
+            }
+            table[i] = null;
+        }
+        count = 0;
+    }
+
+    synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Copy the tracked tiles into an array so they can be walked without
+     * holding the lock. Reusing the array each call means no allocation once
+     * it is big enough.
+     *
+     * @param out - Tile array to fill
+     * @return int number of tiles tracked, if more than out can hold only
+     * the first out.length are copied
+     */
+    synchronized int copyTo(Tile[] out) {
+        int n = 0;
+        for (int i = 0; i < table.length & n < out.length; i++) {
+            if (table[i] != null) {
+                out[n++] = table[i];
+            }
+        }
+        for (int i = n; i < out.length && out[i] != null; i++) {
+            out[i] = null;      // let go of tiles from last time
+        }
+        return count;
+    }
+
+    /**
+     * Get all tracked tiles in a new array, for the rarely called paths where
+     * allocating does not matter
+     *
+     * @return Tile array of every tracked tile
+     */
+    synchronized Tile[] toArray() {
+        Tile[] out = new Tile[count];
+        copyTo(out);
+        return out;
+    }
+}
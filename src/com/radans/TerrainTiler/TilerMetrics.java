@@ -0,0 +1,301 @@
+/*
+ *
+ */
+package com.radans.TerrainTiler;
+
+import com.radans.TerrainTiler.TileRegistry.Tile;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running figures on how a tiler is streaming tiles, for sizing the grid and
+ * the hardware it runs on. Counters and timings are kept as the tiler works,
+ * without locks or allocation, so they are always on. The tile counts are
+ * taken from the registry when asked for.
+ *
+ * Load latency is from a tile being queued to it being ready to attach, load
+ * time is just the reading and building on a loader thread. Frame time is
+ * the time spent in the tilers update each frame. A late cell is an observer
+ * stepping into a tile that is not in use yet, the hitch a bigger grid or
+ * more loader threads would avoid.
+ *
+ * All times are in milliseconds. Get a tilers metrics from
+ * TerrainTiler.getMetrics, or watch them over JMX after
+ * TerrainTiler.registerMBean.
+ *
+ * @author Radan Vowles
+ */
+public final class TilerMetrics implements TilerMetricsMXBean {
+
+    private final TileRegistry registry;
+    private final LatencyHistogram loadLatency = new LatencyHistogram();
+    private final LatencyHistogram loadTime = new LatencyHistogram();
+    private final LatencyHistogram frameTime = new LatencyHistogram();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong cellsEntered = new AtomicLong();
+    private final AtomicLong lateCells = new AtomicLong();
+    private final AtomicLong tilesShed = new AtomicLong();
+
+    TilerMetrics(TileRegistry tiles) {
+        this.registry = tiles;
+    }
+
+    /**
+     * Record a tile loaded
+     *
+     * @param queuedNanos - long from queued to ready
+     * @param loadNanos - long spent loading it
+     */
+    void tileLoaded(long queuedNanos, long loadNanos) {
+        loadLatency.record(queuedNanos);
+        loadTime.record(loadNanos);
+    }
+
+    void bytesRead(long bytes) {
+        bytesRead.addAndGet(bytes);
+    }
+
+    void cacheLookup(boolean hit) {
+        (hit ? cacheHits : cacheMisses).incrementAndGet();
+    }
+
+    void frame(long nanos) {
+        frameTime.record(nanos);
+    }
+
+    /**
+     * Record an observer stepping into a tile
+     *
+     * @param ready - true if the tile was already in use
+     */
+    void cellEntered(boolean ready) {
+        cellsEntered.incrementAndGet();
+        if (!ready) {
+            lateCells.incrementAndGet();
+        }
+    }
+
+    void tileShed() {
+        tilesShed.incrementAndGet();
+    }
+
+    @Override
+    public long getTilesLoaded() {
+        return loadLatency.getCount();
+    }
+
+    /**
+     * Get a percentile of the load latency
+     *
+     * @param percentile - double 0 to 100
+     * @return double milliseconds from queued to ready
+     */
+    public double getLoadLatency(double percentile) {
+        return loadLatency.getPercentile(percentile);
+    }
+
+    @Override
+    public double getLoadLatencyP50() {
+        return loadLatency.getPercentile(50);
+    }
+
+    @Override
+    public double getLoadLatencyP90() {
+        return loadLatency.getPercentile(90);
+    }
+
+    @Override
+    public double getLoadLatencyP99() {
+        return loadLatency.getPercentile(99);
+    }
+
+    @Override
+    public double getLoadLatencyMax() {
+        return loadLatency.getMax();
+    }
+
+    /**
+     * Get a percentile of the load time
+     *
+     * @param percentile - double 0 to 100
+     * @return double milliseconds spent on a loader thread
+     */
+    public double getLoadTime(double percentile) {
+        return loadTime.getPercentile(percentile);
+    }
+
+    @Override
+    public double getLoadTimeP50() {
+        return loadTime.getPercentile(50);
+    }
+
+    @Override
+    public double getLoadTimeP99() {
+        return loadTime.getPercentile(99);
+    }
+
+    /**
+     * Bytes read from raw, pack and j3o tile files. j3o tiles in jars are
+     * not counted.
+     */
+    @Override
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * Tiles attached, or in use by a headless tiler
+     */
+    @Override
+    public int getTilesResident() {
+        return count(TileRegistry.TileState.ATTACHED, null);
+    }
+
+    /**
+     * Tiles queued or loading, and prefetched tiles waiting for the grid
+     */
+    @Override
+    public int getTilesPending() {
+        return count(TileRegistry.TileState.QUEUED, TileRegistry.TileState.PREFETCHED);
+    }
+
+    /**
+     * Tiles loaded and waiting to be attached
+     */
+    @Override
+    public int getTilesAttaching() {
+        return count(TileRegistry.TileState.LOADED, null);
+    }
+
+    /**
+     * Tiles out of range and waiting to be detached or removed
+     */
+    @Override
+    public int getTilesEvicting() {
+        return count(TileRegistry.TileState.DETACHING, TileRegistry.TileState.DETACHED);
+    }
+
+    /**
+     * Estimated heap bytes of the tiles loaded, the detached tile cache not
+     * included
+     */
+    @Override
+    public long getTileHeapBytes() {
+        long bytes = 0;
+        for (Tile t : registry.toArray()) {
+            bytes += t.heapBytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Estimated direct buffer bytes of the tiles loaded, the detached tile
+     * cache not included
+     */
+    @Override
+    public long getTileDirectBytes() {
+        long bytes = 0;
+        for (Tile t : registry.toArray()) {
+            bytes += t.directBytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Tiles dropped to keep within the memory budget
+     */
+    @Override
+    public long getTilesShed() {
+        return tilesShed.get();
+    }
+
+    private int count(TileRegistry.TileState a, TileRegistry.TileState b) {
+        int n = 0;
+        for (Tile t : registry.toArray()) {
+            TileRegistry.TileState s = t.getState();
+            if (s == a | s == b) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    /**
+     * Share of tiles coming into range that were found in the tile cache
+     *
+     * @return double 0 to 1, 0 if none looked for
+     */
+    @Override
+    public double getCacheHitRate() {
+        long hits = cacheHits.get();
+        long all = hits + cacheMisses.get();
+        return all == 0 ? 0 : (double) hits / all;
+    }
+
+    @Override
+    public long getFrames() {
+        return frameTime.getCount();
+    }
+
+    /**
+     * Get a percentile of the time spent in the update each frame
+     *
+     * @param percentile - double 0 to 100
+     * @return double milliseconds
+     */
+    public double getFrameTime(double percentile) {
+        return frameTime.getPercentile(percentile);
+    }
+
+    @Override
+    public double getFrameTimeP50() {
+        return frameTime.getPercentile(50);
+    }
+
+    @Override
+    public double getFrameTimeP99() {
+        return frameTime.getPercentile(99);
+    }
+
+    @Override
+    public double getFrameTimeMax() {
+        return frameTime.getMax();
+    }
+
+    @Override
+    public long getCellsEntered() {
+        return cellsEntered.get();
+    }
+
+    @Override
+    public long getLateCells() {
+        return lateCells.get();
+    }
+
+    /**
+     * Clear all counters and timings, the tile counts are always current
+     */
+    @Override
+    public void reset() {
+        loadLatency.reset();
+        loadTime.reset();
+        frameTime.reset();
+        bytesRead.set(0);
+        cacheHits.set(0);
+        cacheMisses.set(0);
+        cellsEntered.set(0);
+        lateCells.set(0);
+        tilesShed.set(0);
+    }
+}
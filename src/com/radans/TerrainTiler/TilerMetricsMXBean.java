@@ -0,0 +1,64 @@
+/*
+ *
+ */
+package com.radans.TerrainTiler;
+
+/**
+ * Management interface of the TilerMetrics, as seen over JMX once a tiler's
+ * metrics are registered with TerrainTiler.registerMBean. Times are in
+ * milliseconds.
+ *
+ * @author Radan Vowles
+ */
+public interface TilerMetricsMXBean {
+
+    long getTilesLoaded();
+
+    double getLoadLatencyP50();
+
+    double getLoadLatencyP90();
+
+    double getLoadLatencyP99();
+
+    double getLoadLatencyMax();
+
+    double getLoadTimeP50();
+
+    double getLoadTimeP99();
+
+    long getBytesRead();
+
+    int getTilesResident();
+
+    int getTilesPending();
+
+    int getTilesAttaching();
+
+    int getTilesEvicting();
+
+    long getTileHeapBytes();
+
+    long getTileDirectBytes();
+
+    long getTilesShed();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    double getCacheHitRate();
+
+    long getFrames();
+
+    double getFrameTimeP50();
+
+    double getFrameTimeP99();
+
+    double getFrameTimeMax();
+
+    long getCellsEntered();
+
+    long getLateCells();
+
+    void reset();
+}